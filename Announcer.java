@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * Sends everything this cache multicasts, from one socket on one scheduler
+ * thread: announcements with exponential back-off, a reply announcement to
+ * each new cache, a heartbeat every dcache.heartbeat ms, and LEAVING on
+ * shutdown. The failure detector is run on the same thread after each
+ * heartbeat.
+ *
+ * Messages are multicast DNS queries whose name is
+ * "smm-cs621-cache {ip}:{port}", followed by HEARTBEAT or LEAVING when the
+ * message is one of those.
+ *
+ */
+public class Announcer {
+
+	public static final int MAX_INTERVAL = 3600000;  // 1 hour
+	public static final String HEARTBEAT = "HEARTBEAT";
+	public static final String LEAVING = "LEAVING";
+
+	private final ServiceDiscovery sd;
+	private final String strPrefix;
+	private final ScheduledExecutorService scheduler;
+	private MulticastSocket socket;
+	private long interval = 1000; // 1 second
+
+	public Announcer(ServiceDiscovery sd) {
+		this.sd = sd;
+		this.strPrefix = ServiceDiscovery.SERVICE_TYPE + " " + sd.cacheAddress;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "Announcer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/* Starts announcing and sending heartbeats */
+	public void start() {
+		scheduler.execute(new Runnable() {
+			public void run() {
+				announce();
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				send(HEARTBEAT);
+				sd.membership.check();
+			}
+		}, CacheConfig.HEARTBEAT, CacheConfig.HEARTBEAT, TimeUnit.MILLISECONDS);
+	}
+
+	/* Announces this cache once more, for a cache that has just appeared */
+	public void announceNow() {
+		scheduler.execute(new Runnable() {
+			public void run() {
+				System.out.println("> ANNOUNCE: " + strPrefix + " to new cache.");
+				send(null);
+			}
+		});
+	}
+
+	/* Tells the other caches this one is going, and stops */
+	public void leave() {
+		scheduler.shutdownNow();
+		try {
+			scheduler.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		System.out.println("> LEAVING: " + strPrefix);
+		send(LEAVING);
+	}
+
+	/* Service Announcement, with Exponential Back-off */
+	private void announce() {
+		System.out.println("> ANNOUNCE: " + strPrefix + " then wait " + (interval / 1000) + " seconds.");
+		send(null);
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				announce();
+			}
+		}, interval, TimeUnit.MILLISECONDS);
+		interval = Math.min(interval * 3, MAX_INTERVAL);
+	}
+
+	private synchronized void send(String kind) {
+		try {
+			if (socket == null) {
+				socket = new MulticastSocket();
+			}
+			byte[] buf = generatePing(kind == null ? strPrefix : strPrefix + " " + kind);
+			InetAddress group = InetAddress.getByName(ServiceDiscovery.GROUP_IP);
+			socket.send(new DatagramPacket(buf, buf.length, group, ServiceDiscovery.GROUP_PORT));
+		} catch (IOException e) {
+			System.err.println("Unable to multicast: " + e.getMessage());
+			if (socket != null) {
+				socket.close();
+				socket = null;
+			}
+		}
+	}
+
+    /*
+     * All six header fields equal zero (00 00) except the QDCOUNT,
+     * which equals one (00 01).
+     */
+	private static byte[] generatePing(String name) {
+		// 12 byte header + 1 byte for qname length
+	    byte[] header = new byte[13];
+
+		// QDCOUNT == x'0001 (1)
+		header[5] = 1;
+
+		byte[] fqdn = name.getBytes(Charset.forName("UTF-8"));
+		// Length of qname label
+		header[12] = (byte) fqdn.length;
+
+		// 1 byte null for name termination + 4 byte flags
+		byte[] flags = new byte[5];
+		// QTYPE: A == x'0001 (1)
+		flags[2] = 1;
+		// QCLASS: IN = x'0001 (1)
+		flags[4] = 1;
+
+		byte[] query = new byte[header.length + fqdn.length + flags.length];
+		System.arraycopy(header, 0, query, 0, header.length);
+		System.arraycopy(fqdn, 0, query, header.length, fqdn.length);
+		System.arraycopy(flags, 0, query, header.length + fqdn.length, flags.length);
+		return query;
+	}
+
+}
@@ -0,0 +1,166 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * Microbenchmarks of the per-request hot path, run in one JVM:
+ * java -cp . Benchmarks [filter]
+ *
+ * Each case is warmed up for bench.warmup ms, then run in batches for
+ * bench.time ms, and reported as ns and bytes allocated per operation. A
+ * filter runs only the cases whose names contain it. Cases that need a cache
+ * get a throwaway one on a temporary directory and a StubOrigin on loopback.
+ *
+ */
+public class Benchmarks {
+
+	private static final long WARMUP = Long.getLong("bench.warmup", 2000);
+	private static final long TIME = Long.getLong("bench.time", 3000);
+
+	/* One operation of a benchmark */
+	private interface Case {
+		void run() throws IOException;
+	}
+
+	/* keeps results alive so the JIT can't drop the work */
+	private static volatile Object sink;
+
+	private static final PrintStream report = System.out;
+
+	public static void main(String[] args) throws Exception {
+		String filter = args.length > 0 ? args[0] : "";
+		// the proxy logs every request
+		System.setOut(new PrintStream(HttpStreams.DISCARD));
+
+		StubOrigin origin = new StubOrigin();
+		origin.start();
+		File dir = Files.createTempDirectory("dcache-bench").toFile();
+		ServiceDiscovery sd = new ServiceDiscovery(0, dir);
+		final ProxyCacheThread proxy = new ProxyCacheThread(0, sd);
+
+		final String small = origin.url(1, 4096);
+		final String large = origin.url(2, (int) (2 * CacheConfig.MEMORY_MAX_OBJECT));
+		final String clientRequest = "GET /" + small + " HTTP/1.1\r\nHost: 127.0.0.1:9999\r\n" +
+				"User-Agent: Mozilla/5.0 (X11; Linux x86_64)\r\nAccept: */*\r\n" +
+				"Accept-Encoding: gzip, deflate\r\nConnection: keep-alive\r\n\r\n";
+		final byte[] requestBytes = clientRequest.getBytes(HttpStreams.ASCII);
+		final String request = clientRequest.trim();
+		final HttpRequest parsed = new HttpRequest();
+		final List<String> header = new ArrayList<String>();
+		header.add("HTTP/1.1 200 OK");
+		header.add("Content-Type: text/html");
+		header.add("Cache-Control: max-age=600");
+		header.add("ETag: \"v1\"");
+		final byte[] body = new byte[4096];
+		final int[] next = new int[1];
+
+		// cache both objects, and read the small one into memory
+		proxy.getRequest(small, request, HttpStreams.DISCARD);
+		proxy.getRequest(large, request, HttpStreams.DISCARD);
+		sd.writes.flush(5000);
+		proxy.fetchResponseForClient(small, request, HttpStreams.DISCARD);
+
+		run(filter, "urlParser", new Case() {
+			public void run() {
+				sink = new URLParser(small).resource;
+			}
+		});
+		run(filter, "parseRequest", new Case() {
+			public void run() throws IOException {
+				parsed.read(new ByteArrayInputStream(requestBytes));
+				sink = proxy.formatURL(parsed);
+			}
+		});
+		run(filter, "cacheData", new Case() {
+			public void run() {
+				CacheFill fill = proxy.cacheData("http://bench/" + next[0]++, header, body.length);
+				if (fill != null) {
+					fill.write(body, 0, body.length);
+					fill.abort();
+				}
+			}
+		});
+		// whichever index dcache.index chose
+		final CacheIndex index = sd.cache;
+		run(filter, "indexGet", new Case() {
+			public void run() {
+				sink = index.get(small);
+			}
+		});
+		run(filter, "memoryHit", new Case() {
+			public void run() throws IOException {
+				proxy.fetchResponseForClient(small, request, HttpStreams.DISCARD);
+			}
+		});
+		run(filter, "diskHit", new Case() {
+			public void run() throws IOException {
+				proxy.fetchResponseForClient(large, request, HttpStreams.DISCARD);
+			}
+		});
+		// craftResponse is reached through an origin fetch
+		run(filter, "originFetch", new Case() {
+			public void run() throws IOException {
+				proxy.getRequest(small, request, HttpStreams.DISCARD);
+			}
+		});
+
+		origin.close();
+		sd.writes.flush(30000);
+		LoadHarness.delete(dir);
+		System.exit(0);
+	}
+
+	private static void run(String filter, String name, Case benchmark) throws IOException {
+		if (!name.contains(filter)) {
+			return;
+		}
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long end = System.currentTimeMillis() + WARMUP;
+		while (System.currentTimeMillis() < end) {
+			benchmark.run();
+		}
+
+		long operations = 0;
+		long batch = 1;
+		long allocatedBefore = allocated(threads);
+		long start = System.nanoTime();
+		long deadline = start + TIME * 1000000;
+		long now = start;
+		do {
+			long batchStart = now;
+			for (long i = 0; i < batch; i++) {
+				benchmark.run();
+			}
+			operations += batch;
+			now = System.nanoTime();
+			// batches of about 10 ms keep the clock out of the numbers
+			if (now - batchStart < 10000000) {
+				batch *= 2;
+			}
+		} while (now < deadline);
+		long allocatedBytes = allocated(threads) - allocatedBefore;
+
+		report.println(String.format("%-14s %12.1f ns/op %12.0f ops/s %10s B/op", name,
+				(double) (now - start) / operations, operations * 1e9 / (now - start),
+				allocatedBefore < 0 ? "?" : String.format("%.0f", (double) allocatedBytes / operations)));
+	}
+
+	/* Bytes allocated by this thread, or -1 where the JVM doesn't say */
+	private static long allocated(ThreadMXBean threads) {
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+					Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+}
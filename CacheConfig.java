@@ -0,0 +1,121 @@
+/**
+ *
+ * @author smmorneau
+ *
+ * Startup options for the proxy cache. Options are read from system
+ * properties so the command line stays "java -jar dcache.jar {port}", e.g.
+ * java -Ddcache.serveMode=thread -Ddcache.maxInFlight=512 -jar dcache.jar 9999
+ *
+ */
+public class CacheConfig {
+
+	/* "pool" serves clients on a bounded worker pool, "thread" starts a
+	 * thread per connection */
+	public static final String SERVE_MODE = System.getProperty("dcache.serveMode", "pool");
+	public static final int WORKERS = Integer.getInteger("dcache.workers",
+			Runtime.getRuntime().availableProcessors() * 8);
+	/* client connections open at once, idle keep-alive ones included;
+	 * accept blocks beyond this */
+	public static final int MAX_IN_FLIGHT = Integer.getInteger("dcache.maxInFlight", 256);
+
+	/* ms a response without an explicit lifetime stays fresh, at most */
+	public static final long HEURISTIC_TTL = Long.getLong("dcache.heuristicTtl", 300000);
+
+	/* ms past expiry a response may be served while it is revalidated */
+	public static final long STALE_WHILE_REVALIDATE = Long.getLong("dcache.staleWhileRevalidate", 0);
+
+	/* gzip, deflate or none: how text-like bodies are stored */
+	public static final String COMPRESS = System.getProperty("dcache.compress", "gzip");
+
+	/* content type prefixes worth compressing */
+	public static final String[] COMPRESS_TYPES = System.getProperty("dcache.compressTypes",
+			"text/,application/javascript,application/json,application/xml,image/svg+xml").split(",");
+
+	/* bodies smaller than this are stored as they are */
+	public static final int COMPRESS_MIN = Integer.getInteger("dcache.compressMin", 512);
+
+	/* ms a keep-alive client connection may sit idle before it is closed */
+	public static final int CLIENT_IDLE = Integer.getInteger("dcache.clientIdle", 5000);
+
+	/* largest client request header accepted, in bytes and in lines */
+	public static final int MAX_HEADER = Integer.getInteger("dcache.maxHeader", 16 * 1024);
+	public static final int MAX_HEADER_LINES = Integer.getInteger("dcache.maxHeaderLines", 100);
+
+	/* ms to wait on each peer lookup; all peers are asked at once */
+	public static final int PEER_TIMEOUT = Integer.getInteger("dcache.peerTimeout", 1000);
+
+	/* failures in a row that keep us off a peer, for this many ms at first */
+	public static final int BREAKER_FAILURES = Integer.getInteger("dcache.breakerFailures", 5);
+	public static final long BREAKER_BACKOFF = Long.getLong("dcache.breakerBackoff", 5000);
+
+	/* a peer slower than this percentile of its answers is raced against the
+	 * next peer or the web server, but never before hedgeMin ms; 0 disables */
+	public static final double HEDGE_PERCENTILE =
+			Double.parseDouble(System.getProperty("dcache.hedgePercentile", "0.95"));
+	public static final long HEDGE_MIN = Long.getLong("dcache.hedgeMin", 10);
+
+	/* ms failures are remembered: hosts that don't resolve, hosts refusing
+	 * connections, 404s and 5xx responses, 0 for never; and failures kept */
+	public static final long NEGATIVE_DNS_TTL = Long.getLong("dcache.negativeDnsTtl", 30000);
+	public static final long NEGATIVE_CONNECT_TTL = Long.getLong("dcache.negativeConnectTtl", 5000);
+	public static final long NEGATIVE_404_TTL = Long.getLong("dcache.negative404Ttl", 30000);
+	public static final long NEGATIVE_5XX_TTL = Long.getLong("dcache.negative5xxTtl", 5000);
+	public static final int NEGATIVE_ENTRIES = Integer.getInteger("dcache.negativeEntries", 10000);
+
+	/* ms a miss waits for the same url's fetch in flight to start caching */
+	public static final int COALESCE_WAIT = Integer.getInteger("dcache.coalesceWait", 30000);
+
+	/* keep-alive connections to web servers: idle ms before closing, per host
+	 * limit, and connect timeout ms */
+	public static final long ORIGIN_IDLE = Long.getLong("dcache.originIdle", 30000);
+	public static final int ORIGIN_MAX_PER_HOST = Integer.getInteger("dcache.originMaxPerHost", 8);
+	public static final int ORIGIN_CONNECT_TIMEOUT = Integer.getInteger("dcache.originConnectTimeout", 5000);
+	/* ms a host lookup is remembered, and hosts remembered */
+	public static final long DNS_TTL = Long.getLong("dcache.dnsTtl", 60000);
+	public static final int DNS_ENTRIES = Integer.getInteger("dcache.dnsEntries", 4096);
+
+	/* ms between heartbeats, and the phi at which a silent peer is dropped;
+	 * it stops being asked for urls at half that */
+	public static final int HEARTBEAT = Integer.getInteger("dcache.heartbeat", 1000);
+	public static final double PHI_THRESHOLD =
+			Double.parseDouble(System.getProperty("dcache.phiThreshold", "8"));
+
+	/* each url is owned by one cache, chosen by rendezvous hashing */
+	public static final boolean OWNERSHIP = Boolean.getBoolean("dcache.ownership");
+	/* requests a second that make a url hot enough to copy to the peers, 0 for
+	 * never, and bytes a second the peers may pull hot urls from here */
+	public static final double REPLICATE_RATE =
+			Double.parseDouble(System.getProperty("dcache.replicateRate", "10"));
+	public static final long REPLICATE_BANDWIDTH = Long.getLong("dcache.replicateBandwidth", 10L << 20);
+
+	/* directory holding the cache files, and its limits in bytes and objects */
+	public static final String CACHE_DIR = System.getProperty("dcache.dir", "cache");
+	public static final long DISK_BYTES = Long.getLong("dcache.diskBytes", 1L << 30);
+	public static final int DISK_OBJECTS = Integer.getInteger("dcache.diskObjects", 100000);
+	/* threads writing cache fills, bytes that may wait for them before fills
+	 * are dropped, and whether fills are forced to disk before they are
+	 * published */
+	public static final int IO_WORKERS = Integer.getInteger("dcache.ioWorkers", 2);
+	public static final long WRITE_QUEUE_BYTES = Long.getLong("dcache.writeQueueBytes", 32L << 20);
+	public static final boolean FSYNC = Boolean.getBoolean("dcache.fsync");
+	/* the index of cached urls: map, or compact for millions of urls */
+	public static final String INDEX = System.getProperty("dcache.index", "map");
+	/* index log records before it is compacted into a snapshot */
+	public static final int INDEX_COMPACT = Integer.getInteger("dcache.indexCompact", 10000);
+
+	/* bytes held by the in-memory tier, and the largest object it takes */
+	public static final long MEMORY_BYTES = Long.getLong("dcache.memoryBytes", 64L << 20);
+	public static final long MEMORY_MAX_OBJECT = Long.getLong("dcache.memoryMaxObject", 1L << 20);
+
+	/* cache digests: urls sized for, target false positive rate, hard size cap */
+	public static final int DIGEST_ENTRIES = Integer.getInteger("dcache.digestEntries", 100000);
+	public static final double DIGEST_FPP =
+			Double.parseDouble(System.getProperty("dcache.digestFpp", "0.01"));
+	public static final int DIGEST_MAX_BYTES = Integer.getInteger("dcache.digestMaxBytes", 1 << 20);
+	/* ms between digest pulls, and pulls between full rebuilds */
+	public static final long DIGEST_INTERVAL = Integer.getInteger("dcache.digestInterval", 5000);
+	public static final int DIGEST_REBUILD = Integer.getInteger("dcache.digestRebuild", 60);
+	/* additions remembered for incremental pulls */
+	public static final int DIGEST_LOG = Integer.getInteger("dcache.digestLog", 4096);
+
+}
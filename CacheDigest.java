@@ -0,0 +1,121 @@
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * A Bloom filter over the urls held by a cache. Peers keep a copy of each
+ * other's digest so that a url missing from every digest can go straight to
+ * the web server without asking anyone.
+ *
+ */
+public class CacheDigest {
+
+	public final int numBits;
+	public final int numHashes;
+	private final AtomicLongArray bits;
+
+	/*
+	 * Sizes the filter so that expectedEntries urls give a false positive
+	 * rate of fpp, but never uses more than maxBytes.
+	 */
+	public CacheDigest(int expectedEntries, double fpp, int maxBytes) {
+		int n = Math.max(1, expectedEntries);
+		long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+		m = Math.max(64, Math.min(m, (long) maxBytes * 8));
+		this.numBits = (int) ((m + 63) / 64 * 64);
+		this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+		this.bits = new AtomicLongArray(numBits / 64);
+	}
+
+	private CacheDigest(int numBits, int numHashes, long[] words) {
+		this.numBits = numBits;
+		this.numHashes = numHashes;
+		this.bits = new AtomicLongArray(words);
+	}
+
+	public void add(String url) {
+		add(hash(url));
+	}
+
+	public void add(long hash) {
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 1; i <= numHashes; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+			long mask = 1L << bit;
+			int word = bit >>> 6;
+			long old;
+			do {
+				old = bits.get(word);
+			} while ((old & mask) == 0 && !bits.compareAndSet(word, old, old | mask));
+		}
+	}
+
+	public boolean mightContain(String url) {
+		long hash = hash(url);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 1; i <= numHashes; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+			if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* False positive rate once entries urls have been added */
+	public double falsePositiveRate(int entries) {
+		return Math.pow(1 - Math.exp(-(double) numHashes * entries / numBits), numHashes);
+	}
+
+	/* numBits numHashes base64(bits) */
+	public String encode() {
+		byte[] raw = new byte[numBits / 8];
+		for (int i = 0; i < bits.length(); i++) {
+			long word = bits.get(i);
+			for (int b = 0; b < 8; b++) {
+				raw[i * 8 + b] = (byte) (word >>> (b * 8));
+			}
+		}
+		return numBits + " " + numHashes + " " + Base64.getEncoder().encodeToString(raw);
+	}
+
+	/* Returns null if the encoded digest is malformed */
+	public static CacheDigest decode(String encoded) {
+		String[] parts = encoded.trim().split(" ");
+		if (parts.length != 3) {
+			return null;
+		}
+		try {
+			int numBits = Integer.parseInt(parts[0]);
+			int numHashes = Integer.parseInt(parts[1]);
+			byte[] raw = Base64.getDecoder().decode(parts[2]);
+			if (numBits <= 0 || numBits % 64 != 0 || raw.length != numBits / 8 || numHashes <= 0) {
+				return null;
+			}
+			long[] words = new long[numBits / 64];
+			for (int i = 0; i < raw.length; i++) {
+				words[i / 8] |= (raw[i] & 0xffL) << ((i % 8) * 8);
+			}
+			return new CacheDigest(numBits, numHashes, words);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * The first 64 bits of the url's SHA-1, the same hash the compact index
+	 * is keyed by, so the digest can be rebuilt from the index alone
+	 */
+	static long hash(String url) {
+		return hashOf(DiskStore.sha1(url));
+	}
+
+	static long hashOf(String sha1) {
+		return Long.parseUnsignedLong(sha1.substring(0, 16), 16);
+	}
+
+}
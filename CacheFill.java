@@ -0,0 +1,381 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * A cached copy of a url being written while its body streams to the
+ * client. Bytes are gathered into chunks handed to the write-behind
+ * workers, which write them to a temporary file, hashing them as they go,
+ * and have the disk store move it into place under its hash, making the url
+ * visible in the cache index, only once the body is complete and on disk.
+ * Other requests for the url can follow the fill, reading the temporary file
+ * as it grows, and the url stays in flight until the fill is published so
+ * none of them fetch it again.
+ *
+ */
+public class CacheFill {
+
+	private static final int CHUNK = 64 * 1024;
+
+	private final ServiceDiscovery sd;
+	private final String url;
+	// [fileName, contentType, size, storedAt, expires, staleWindow, etag, lastModified,
+	//  encoding, identitySize]
+	private final String[] metadata;
+	private final long expectedLength;
+	private final int worker;
+
+	// only touched by the filling request
+	private byte[] chunk;
+	private int chunked;
+	private long handed;
+
+	// only touched by the write-behind worker
+	private FileOutputStream out;
+	private MessageDigest digest;
+	private File stored;
+	private long storedSize;
+	private byte[] storedHeader;
+	private String storedHash;
+
+	// guarded by this
+	private File temp;
+	private long size;
+	private boolean closed;
+	private boolean complete;
+	private boolean done;
+	private boolean aborted;
+	private InFlight flight;
+
+	public CacheFill(ServiceDiscovery sd, String url, String[] metadata, long expectedLength) {
+		this.sd = sd;
+		this.url = url;
+		this.metadata = metadata;
+		this.expectedLength = expectedLength;
+		this.worker = sd.writes.assign();
+	}
+
+	public String contentType() {
+		return metadata[1];
+	}
+
+	/* The header the body is served with while it is being written */
+	public List<String> header() {
+		return Freshness.header(metadata, expectedLength);
+	}
+
+	/* The header for sending a body that arrived compressed decompressed */
+	public synchronized List<String> identityHeader() {
+		return Compression.identityHeader(metadata);
+	}
+
+	/* Keeps the url in flight until the fill is published or dropped */
+	synchronized void holds(InFlight flight) {
+		this.flight = flight;
+	}
+
+	/* True if the fill has been committed but isn't published yet */
+	synchronized boolean pending() {
+		return closed && !done && !aborted;
+	}
+
+	/* Returns false, having aborted the fill, if the bytes can't be queued */
+	public boolean write(byte[] buf, int off, int len) {
+		if (closed()) {
+			return false;
+		}
+		while (len > 0) {
+			if (chunk == null) {
+				// no larger than what is left of a body of known length
+				long left = expectedLength >= 0 ? Math.max(len, expectedLength - handed) : CHUNK;
+				chunk = new byte[(int) Math.min(CHUNK, left)];
+			}
+			int n = Math.min(len, chunk.length - chunked);
+			System.arraycopy(buf, off, chunk, chunked, n);
+			chunked += n;
+			off += n;
+			len -= n;
+			if (chunked == chunk.length && !queueChunk()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* Queues the rest of the body and its commit */
+	public void commit() {
+		if (closed() || (chunked > 0 && !queueChunk())) {
+			return;
+		}
+		synchronized (this) {
+			closed = true;
+		}
+		sd.writes.commit(this, worker);
+	}
+
+	public void abort() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			aborted = true;
+			notifyAll();
+		}
+		chunk = null;
+		sd.writes.abort(this, worker);
+	}
+
+	private synchronized boolean closed() {
+		return closed;
+	}
+
+	private boolean queueChunk() {
+		if (!sd.writes.write(this, worker, chunk, chunked)) {
+			System.out.println(">>> WRITE QUEUE FULL: " + url + " not cached");
+			abort();
+			return false;
+		}
+		handed += chunked;
+		chunk = null;
+		chunked = 0;
+		return true;
+	}
+
+	/* Worker: appends a chunk to the temporary file */
+	void flush(byte[] data, int length) {
+		if (isAborted()) {
+			return;
+		}
+		try {
+			open();
+			out.write(data, 0, length);
+			digest.update(data, 0, length);
+			synchronized (this) {
+				size += length;
+				notifyAll();
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/*
+	 * Worker: closes the complete body, compressing it if that pays, forced
+	 * to disk if sync. Returns false if the fill failed.
+	 */
+	boolean close(boolean sync) {
+		if (isAborted()) {
+			return false;
+		}
+		try {
+			open();
+			synchronized (this) {
+				// followers from now on read the published copy
+				complete = true;
+				notifyAll();
+			}
+			if (sync) {
+				out.getFD().sync();
+			}
+			out.close();
+			out = null;
+			stored = temp;
+			storedSize = size;
+			String encoding = Compression.choose(metadata, size);
+			if (encoding != null) {
+				File packed = sd.disk.tempFile();
+				try {
+					MessageDigest packedDigest = DiskStore.digest("SHA-256");
+					long packedSize = Compression.compress(temp, packed, encoding, packedDigest);
+					if (packedSize <= size - size / 10) {
+						if (sync) {
+							force(packed);
+						}
+						synchronized (this) {
+							metadata[8] = encoding;
+							metadata[9] = "" + size;
+						}
+						stored = packed;
+						storedSize = packedSize;
+						digest = packedDigest;
+						// followers that opened it keep reading it
+						temp.delete();
+					}
+				} finally {
+					// not kept, or compressing or forcing it failed
+					if (stored != packed) {
+						packed.delete();
+					}
+				}
+			}
+			storedHeader = HttpStreams.headerBytes(Freshness.header(metadata, storedSize));
+			storedHash = DiskStore.hex(digest.digest());
+			return true;
+		} catch (IOException e) {
+			fail(e);
+			return false;
+		}
+	}
+
+	/* Worker: moves the closed body into place and publishes it in the index */
+	boolean publish() {
+		try {
+			sd.disk.commit(url, metadata, stored, storedSize, storedHeader, storedHash);
+		} catch (IOException e) {
+			stored.delete();
+			fail(e);
+			return false;
+		}
+		synchronized (this) {
+			done = true;
+			notifyAll();
+		}
+		release();
+		return true;
+	}
+
+	/* Worker: drops an aborted fill */
+	void discard() {
+		closeQuietly();
+		File written;
+		synchronized (this) {
+			written = temp;
+		}
+		if (written != null) {
+			written.delete();
+		}
+		release();
+	}
+
+	private synchronized boolean isAborted() {
+		return aborted;
+	}
+
+	private void open() throws IOException {
+		if (out != null) {
+			return;
+		}
+		File created = sd.disk.tempFile();
+		out = new FileOutputStream(created);
+		digest = DiskStore.digest("SHA-256");
+		synchronized (this) {
+			temp = created;
+			notifyAll();
+		}
+	}
+
+	private void fail(IOException e) {
+		System.err.println("Unable to cache data: " + e.getMessage());
+		synchronized (this) {
+			aborted = true;
+			notifyAll();
+		}
+		discard();
+	}
+
+	private void closeQuietly() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {}
+			out = null;
+		}
+	}
+
+	private void release() {
+		InFlight held;
+		synchronized (this) {
+			held = flight;
+		}
+		if (held != null) {
+			sd.inFlight.remove(url, held);
+		}
+	}
+
+	private static void force(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/*
+	 * Streams the body to another client as it is written. Returns false if
+	 * the fill had already finished or failed, or arrived compressed in a way
+	 * the client's request doesn't accept, so nothing was sent.
+	 */
+	public boolean follow(String request, OutputStream client) throws IOException {
+		FileInputStream in;
+		synchronized (this) {
+			while (temp == null && !complete && !aborted) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted following " + url);
+				}
+			}
+			if (complete) {
+				// the caller serves it from the cache once it is published
+				while (!done && !aborted) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted following " + url);
+					}
+				}
+				return false;
+			}
+			if (aborted) {
+				return false;
+			}
+			if (metadata[8] != null && !Compression.accepts(request, metadata[8])) {
+				return false;
+			}
+			// still open once the fill is moved into place
+			in = new FileInputStream(temp);
+		}
+		try {
+			OutputStream body = HttpStreams.beginBody(client, header());
+			long sent = 0;
+			while (true) {
+				long available;
+				synchronized (this) {
+					while (size == sent && !complete && !aborted) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							throw new IOException("Interrupted following " + url);
+						}
+					}
+					if (aborted && !complete) {
+						throw new IOException("Fill of " + url + " failed");
+					}
+					available = size - sent;
+				}
+				if (available == 0) {
+					break;
+				}
+				HttpStreams.copy(in, body, null, available);
+				client.flush();
+				sent += available;
+			}
+			HttpStreams.endBody(body);
+			return true;
+		} finally {
+			in.close();
+		}
+	}
+
+}
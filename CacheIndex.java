@@ -0,0 +1,38 @@
+/**
+ *
+ * @author smmorneau
+ *
+ * The index of cached urls, giving each url's metadata:
+ *
+ * [fileName, contentType, size, storedAt, expires, staleWindow, etag, lastModified,
+ *  encoding, identitySize]
+ *
+ * MapCacheIndex keeps the arrays as they are given. CompactCacheIndex packs
+ * them into primitive arrays keyed by a 64 bit hash of the url, for caches
+ * holding millions of urls. dcache.index chooses between them.
+ *
+ */
+public interface CacheIndex {
+
+	/* The metadata of url, or null. It must not be changed. */
+	String[] get(String url);
+
+	void put(String url, String[] metadata);
+
+	/* Returns the metadata the url had, or null */
+	String[] remove(String url);
+
+	/*
+	 * Removes the url whose DiskStore.key is given, returning its metadata,
+	 * or null. Its fileName is null if the body was named by the url.
+	 */
+	String[] removeKey(long key);
+
+	boolean containsKey(String url);
+
+	int size();
+
+	/* CacheDigest.hash of every url, for rebuilding the digest */
+	long[] hashes();
+
+}
@@ -0,0 +1,405 @@
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * The cache index as an open addressing table over primitive arrays, with
+ * no objects per url. Each url is keyed by the first 64 bits of its SHA-1,
+ * so the url isn't kept. A record holds the size, storage time, expiry,
+ * stale window, Last-Modified and decompressed size as longs, the content
+ * type as the id of an interned string, the encoding as a byte, and inline
+ * the hash naming its body file and an ETag of up to 64 bytes, room for the
+ * quoted MD5s most servers send; longer ETags are dropped and revalidation
+ * falls back to Last-Modified.
+ *
+ * Lookups read the table optimistically and only lock if it changed under
+ * them. Collisions probe linearly, and removals shift the following
+ * records back so there are no tombstones.
+ *
+ */
+public class CompactCacheIndex implements CacheIndex {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	// long fields of a record, in order
+	private static final int SIZE = 0;
+	private static final int STORED_AT = 1;
+	private static final int EXPIRES = 2;
+	private static final int STALE_WINDOW = 3;
+	private static final int LAST_MODIFIED = 4;
+	private static final int IDENTITY_SIZE = 5;
+	private static final int FIELDS = 6;
+	/* a field that was null */
+	private static final long NONE = Long.MIN_VALUE;
+
+	/* a SHA-256, the longest body file name */
+	private static final int NAME_BYTES = 32;
+	private static final int ETAG_BYTES = 64;
+	/* ETag length byte of a record without one */
+	private static final byte NO_ETAG = -1;
+	private static final String[] ENCODINGS = {null, "gzip", "deflate"};
+	private static final int MAX_TYPES = Character.MAX_VALUE;
+
+	private final DiskStore disk;
+	private final StampedLock lock = new StampedLock();
+
+	// guarded by lock, replaced whole when the table grows
+	private long[] keys;
+	private long[] fields;
+	private char[] types;
+	private byte[] encodings;
+	private byte[] bodies;
+	private byte[] etags;
+	private int count;
+
+	// guarded by lock; names is copied on write, id 0 is no content type
+	private volatile String[] names = new String[]{null};
+	private final Map<String, Integer> typeIds = new HashMap<String, Integer>();
+
+	public CompactCacheIndex(DiskStore disk) {
+		this.disk = disk;
+		allocate(1024);
+	}
+
+	public String[] get(String url) {
+		String sha1 = DiskStore.sha1(url);
+		long key = key(sha1);
+		long[] record = new long[FIELDS];
+		byte[] name = new byte[NAME_BYTES + 1];
+		byte[] etag = new byte[ETAG_BYTES + 1];
+		int[] small = new int[2];
+		long stamp = lock.tryOptimisticRead();
+		boolean found = read(key, record, small, name, etag);
+		if (!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			try {
+				found = read(key, record, small, name, etag);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		return found ? metadata(sha1, record, small, name, etag) : null;
+	}
+
+	/*
+	 * The metadata array of a record read out of the table. A body named by
+	 * the url has no fileName unless the url's SHA-1 is given.
+	 */
+	private String[] metadata(String sha1, long[] record, int[] small, byte[] name, byte[] etag) {
+		// metadata = [fileName, contentType, size, storedAt, expires, staleWindow, etag, lastModified,
+		//             encoding, identitySize]
+		String[] typeNames = names;
+		String[] metadata = new String[10];
+		metadata[0] = name[0] != 0 ? disk.fileForHash(DiskStore.hex(Arrays.copyOfRange(name, 1, 1 + name[0]))) :
+				sha1 != null ? disk.fileForHash(sha1) : null;
+		metadata[1] = small[0] < typeNames.length ? typeNames[small[0]] : null;
+		metadata[2] = text(record[SIZE]);
+		metadata[3] = text(record[STORED_AT]);
+		metadata[4] = text(record[EXPIRES]);
+		metadata[5] = text(record[STALE_WINDOW]);
+		metadata[6] = etag[0] == NO_ETAG ? null : new String(etag, 1, etag[0], ASCII);
+		metadata[7] = record[LAST_MODIFIED] == NONE ? null : Freshness.formatDate(record[LAST_MODIFIED]);
+		metadata[8] = ENCODINGS[small[1]];
+		metadata[9] = text(record[IDENTITY_SIZE]);
+		return metadata;
+	}
+
+	public void put(String url, String[] metadata) {
+		long key = key(DiskStore.sha1(url));
+		long[] record = new long[FIELDS];
+		record[SIZE] = number(metadata[2]);
+		record[STORED_AT] = number(metadata[3]);
+		record[EXPIRES] = number(metadata[4]);
+		record[STALE_WINDOW] = number(metadata[5]);
+		record[LAST_MODIFIED] = metadata[7] == null ? NONE : Freshness.parseDate(metadata[7]);
+		if (record[LAST_MODIFIED] < 0) {
+			record[LAST_MODIFIED] = NONE;
+		}
+		record[IDENTITY_SIZE] = number(metadata[9]);
+		byte encoding = 0;
+		for (byte i = 1; i < ENCODINGS.length; i++) {
+			if (ENCODINGS[i].equalsIgnoreCase(metadata[8])) {
+				encoding = i;
+			}
+		}
+		byte[] name = name(metadata[0]);
+		byte[] etag = metadata[6] == null ? null : metadata[6].getBytes(ASCII);
+
+		long stamp = lock.writeLock();
+		try {
+			char type = intern(metadata[1]);
+			int slot = find(key);
+			if (keys[slot] == 0) {
+				keys[slot] = key;
+				count++;
+			}
+			System.arraycopy(record, 0, fields, slot * FIELDS, FIELDS);
+			types[slot] = type;
+			encodings[slot] = encoding;
+			bodies[slot * (NAME_BYTES + 1)] = (byte) name.length;
+			System.arraycopy(name, 0, bodies, slot * (NAME_BYTES + 1) + 1, name.length);
+			int at = slot * (ETAG_BYTES + 1);
+			if (etag == null || etag.length > ETAG_BYTES) {
+				etags[at] = NO_ETAG;
+			} else {
+				etags[at] = (byte) etag.length;
+				System.arraycopy(etag, 0, etags, at + 1, etag.length);
+			}
+			if (count > keys.length / 4 * 3) {
+				grow();
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public String[] remove(String url) {
+		String sha1 = DiskStore.sha1(url);
+		return remove(key(sha1), sha1);
+	}
+
+	public String[] removeKey(long key) {
+		return remove(key, null);
+	}
+
+	/* Removes a record, whose url's SHA-1 is given if it is known */
+	private String[] remove(long key, String sha1) {
+		long[] record = new long[FIELDS];
+		byte[] name = new byte[NAME_BYTES + 1];
+		byte[] etag = new byte[ETAG_BYTES + 1];
+		int[] small = new int[2];
+		long stamp = lock.writeLock();
+		try {
+			// read and deleted at once, so a put in between can't be lost
+			if (!read(key, record, small, name, etag)) {
+				return null;
+			}
+			delete(find(key));
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		return metadata(sha1, record, small, name, etag);
+	}
+
+	public boolean containsKey(String url) {
+		long key = key(DiskStore.sha1(url));
+		long stamp = lock.readLock();
+		try {
+			return keys[find(key)] != 0;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public int size() {
+		long stamp = lock.readLock();
+		try {
+			return count;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public long[] hashes() {
+		long stamp = lock.readLock();
+		try {
+			long[] hashes = new long[count];
+			int n = 0;
+			for (long key: keys) {
+				if (key != 0) {
+					hashes[n++] = key;
+				}
+			}
+			return hashes;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/* The index key of a url with this SHA-1, never 0, which marks a free slot */
+	static long key(String sha1) {
+		long key = CacheDigest.hashOf(sha1);
+		return key == 0 ? 1 : key;
+	}
+
+	/*
+	 * Copies the record for key out of the table, which may be changing under
+	 * an optimistic read; the caller validates before using what was read.
+	 */
+	private boolean read(long key, long[] record, int[] small, byte[] name, byte[] etag) {
+		long[] keys = this.keys;
+		long[] fields = this.fields;
+		char[] types = this.types;
+		byte[] encodings = this.encodings;
+		byte[] bodies = this.bodies;
+		byte[] etags = this.etags;
+		if (keys == null || fields.length != keys.length * FIELDS || types.length != keys.length ||
+				encodings.length != keys.length || bodies.length != keys.length * (NAME_BYTES + 1) ||
+				etags.length != keys.length * (ETAG_BYTES + 1)) {
+			// caught halfway through growing
+			return false;
+		}
+		int mask = keys.length - 1;
+		int slot = slot(key, mask);
+		for (int probes = 0; probes < keys.length; probes++) {
+			long found = keys[slot];
+			if (found == 0) {
+				return false;
+			}
+			if (found == key) {
+				System.arraycopy(fields, slot * FIELDS, record, 0, FIELDS);
+				small[0] = types[slot];
+				small[1] = Math.min(encodings[slot], ENCODINGS.length - 1);
+				System.arraycopy(bodies, slot * (NAME_BYTES + 1), name, 0, NAME_BYTES + 1);
+				if (name[0] < 0 || name[0] > NAME_BYTES) {
+					name[0] = 0;
+				}
+				int at = slot * (ETAG_BYTES + 1);
+				System.arraycopy(etags, at, etag, 0, ETAG_BYTES + 1);
+				if (etag[0] > ETAG_BYTES) {
+					etag[0] = NO_ETAG;
+				}
+				return true;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	/* The slot holding key, or the free slot where it would go */
+	private int find(long key) {
+		int mask = keys.length - 1;
+		int slot = slot(key, mask);
+		while (keys[slot] != 0 && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private static int slot(long key, int mask) {
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+
+	/* Empties slot and moves back the records that probed past it */
+	private void delete(int slot) {
+		int mask = keys.length - 1;
+		int free = slot;
+		int next = (slot + 1) & mask;
+		while (keys[next] != 0) {
+			int home = slot(keys[next], mask);
+			// move it back unless its home lies cyclically in (free, next]
+			boolean stays = free <= next ? (free < home && home <= next) : (free < home || home <= next);
+			if (!stays) {
+				move(next, free);
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[free] = 0;
+		count--;
+	}
+
+	private void move(int from, int to) {
+		keys[to] = keys[from];
+		System.arraycopy(fields, from * FIELDS, fields, to * FIELDS, FIELDS);
+		types[to] = types[from];
+		encodings[to] = encodings[from];
+		System.arraycopy(bodies, from * (NAME_BYTES + 1), bodies, to * (NAME_BYTES + 1), NAME_BYTES + 1);
+		System.arraycopy(etags, from * (ETAG_BYTES + 1), etags, to * (ETAG_BYTES + 1), ETAG_BYTES + 1);
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		long[] oldFields = fields;
+		char[] oldTypes = types;
+		byte[] oldEncodings = encodings;
+		byte[] oldBodies = bodies;
+		byte[] oldEtags = etags;
+		allocate(oldKeys.length * 2);
+		for (int from = 0; from < oldKeys.length; from++) {
+			if (oldKeys[from] == 0) {
+				continue;
+			}
+			int to = find(oldKeys[from]);
+			keys[to] = oldKeys[from];
+			System.arraycopy(oldFields, from * FIELDS, fields, to * FIELDS, FIELDS);
+			types[to] = oldTypes[from];
+			encodings[to] = oldEncodings[from];
+			System.arraycopy(oldBodies, from * (NAME_BYTES + 1), bodies, to * (NAME_BYTES + 1), NAME_BYTES + 1);
+			System.arraycopy(oldEtags, from * (ETAG_BYTES + 1), etags, to * (ETAG_BYTES + 1), ETAG_BYTES + 1);
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		fields = new long[capacity * FIELDS];
+		types = new char[capacity];
+		encodings = new byte[capacity];
+		bodies = new byte[capacity * (NAME_BYTES + 1)];
+		etags = new byte[capacity * (ETAG_BYTES + 1)];
+	}
+
+	/*
+	 * The body file name of a path as bytes, or none if it isn't a hash in
+	 * hex under the store, which then is taken to be named by the url.
+	 */
+	private byte[] name(String path) {
+		String hex = new File(path).getName();
+		if (hex.length() < 4 || hex.length() > NAME_BYTES * 2 || hex.length() % 2 != 0 ||
+				!path.equals(disk.fileForHash(hex))) {
+			return new byte[0];
+		}
+		byte[] name = new byte[hex.length() / 2];
+		for (int i = 0; i < name.length; i++) {
+			int high = Character.digit(hex.charAt(i * 2), 16);
+			int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+			if (high < 0 || low < 0) {
+				return new byte[0];
+			}
+			name[i] = (byte) (high << 4 | low);
+		}
+		return name;
+	}
+
+	/* The id of a content type, 0 for none or once MAX_TYPES are interned */
+	private char intern(String type) {
+		if (type == null) {
+			return 0;
+		}
+		Integer id = typeIds.get(type);
+		if (id == null) {
+			if (names.length >= MAX_TYPES) {
+				return 0;
+			}
+			String[] grown = new String[names.length + 1];
+			System.arraycopy(names, 0, grown, 0, names.length);
+			id = names.length;
+			grown[id] = type;
+			typeIds.put(type, id);
+			names = grown;
+		}
+		return (char) id.intValue();
+	}
+
+	private static long number(String value) {
+		if (value == null) {
+			return NONE;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return NONE;
+		}
+	}
+
+	private static String text(long value) {
+		return value == NONE ? null : Long.toString(value);
+	}
+
+}
@@ -0,0 +1,196 @@
+/**
+ *
+ * @author smmorneau
+ *
+ * 64 bit keys with a long value each, kept in least recently used order in
+ * primitive arrays, with no objects per key: an open addressing table whose
+ * slots are also linked, oldest to newest, by their indexes. The disk store
+ * keeps its urls' sizes in one, keyed as the compact index is, so that
+ * neither holds the urls. Key 0 marks a free slot and can't be stored. Not
+ * thread safe.
+ *
+ */
+public class CompactLru {
+
+	/* no slot, at either end of the order */
+	private static final int NONE = -1;
+
+	private long[] keys;
+	private long[] values;
+	private int[] older;
+	private int[] newer;
+	private int eldest = NONE;
+	private int newest = NONE;
+	private int count;
+
+	public CompactLru() {
+		allocate(1024);
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public boolean contains(long key) {
+		return keys[find(key)] != 0;
+	}
+
+	/* The value of key, or -1 if it isn't held */
+	public long get(long key) {
+		int slot = find(key);
+		return keys[slot] == 0 ? -1 : values[slot];
+	}
+
+	/* Stores key as the most recently used, returning its old value or -1 */
+	public long put(long key, long value) {
+		int slot = find(key);
+		long old = -1;
+		if (keys[slot] == 0) {
+			keys[slot] = key;
+			count++;
+		} else {
+			old = values[slot];
+			unlink(slot);
+		}
+		values[slot] = value;
+		linkNewest(slot);
+		if (count > keys.length / 4 * 3) {
+			grow();
+		}
+		return old;
+	}
+
+	/* Makes key the most recently used, if it is held */
+	public void touch(long key) {
+		int slot = find(key);
+		if (keys[slot] != 0 && slot != newest) {
+			unlink(slot);
+			linkNewest(slot);
+		}
+	}
+
+	/* Returns the value key had, or -1 if it wasn't held */
+	public long remove(long key) {
+		int slot = find(key);
+		if (keys[slot] == 0) {
+			return -1;
+		}
+		long old = values[slot];
+		unlink(slot);
+		delete(slot);
+		return old;
+	}
+
+	/* The least recently used key, 0 if there is none */
+	public long eldest() {
+		return eldest == NONE ? 0 : keys[eldest];
+	}
+
+	/* Every key, least recently used first */
+	public long[] keys() {
+		long[] ordered = new long[count];
+		int n = 0;
+		for (int slot = eldest; slot != NONE; slot = newer[slot]) {
+			ordered[n++] = keys[slot];
+		}
+		return ordered;
+	}
+
+	/* The slot holding key, or the free slot where it would go */
+	private int find(long key) {
+		int mask = keys.length - 1;
+		int slot = (int) (key ^ (key >>> 32)) & mask;
+		while (keys[slot] != 0 && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void unlink(int slot) {
+		int before = older[slot];
+		int after = newer[slot];
+		if (before != NONE) {
+			newer[before] = after;
+		} else {
+			eldest = after;
+		}
+		if (after != NONE) {
+			older[after] = before;
+		} else {
+			newest = before;
+		}
+	}
+
+	private void linkNewest(int slot) {
+		older[slot] = newest;
+		newer[slot] = NONE;
+		if (newest != NONE) {
+			newer[newest] = slot;
+		} else {
+			eldest = slot;
+		}
+		newest = slot;
+	}
+
+	/* Empties an unlinked slot and moves back the keys that probed past it */
+	private void delete(int slot) {
+		int mask = keys.length - 1;
+		int free = slot;
+		int next = (slot + 1) & mask;
+		while (keys[next] != 0) {
+			int home = (int) (keys[next] ^ (keys[next] >>> 32)) & mask;
+			// move it back unless its home lies cyclically in (free, next]
+			boolean stays = free <= next ? (free < home && home <= next) : (free < home || home <= next);
+			if (!stays) {
+				move(next, free);
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[free] = 0;
+		count--;
+	}
+
+	/* Moves a linked key to a free slot, relinking its neighbours */
+	private void move(int from, int to) {
+		keys[to] = keys[from];
+		values[to] = values[from];
+		older[to] = older[from];
+		newer[to] = newer[from];
+		if (older[to] != NONE) {
+			newer[older[to]] = to;
+		} else {
+			eldest = to;
+		}
+		if (newer[to] != NONE) {
+			older[newer[to]] = to;
+		} else {
+			newest = to;
+		}
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		int[] oldNewer = newer;
+		int from = eldest;
+		allocate(oldKeys.length * 2);
+		// reinserted oldest first, keeping the order
+		for (; from != NONE; from = oldNewer[from]) {
+			int to = find(oldKeys[from]);
+			keys[to] = oldKeys[from];
+			values[to] = oldValues[from];
+			linkNewest(to);
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new long[capacity];
+		older = new int[capacity];
+		newer = new int[capacity];
+		eldest = NONE;
+		newest = NONE;
+	}
+
+}
@@ -0,0 +1,147 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * Compressed storage of cached bodies. Bodies of text-like content types are
+ * compressed with dcache.compress (gzip or deflate) when a fill commits, if
+ * that saves at least a tenth of their size. A compressed body is sent as it
+ * is to clients whose Accept-Encoding allows it, and to peers, and is only
+ * decompressed for clients that can't take it. Bodies that arrive already
+ * compressed, from a peer or a web server, are stored as they are.
+ *
+ * The encoding and the decompressed size follow freshness in the metadata:
+ *
+ * [fileName, contentType, size, storedAt, expires, staleWindow, etag, lastModified,
+ *  encoding, identitySize]
+ *
+ */
+public class Compression {
+
+	/* header carrying the decompressed size of a compressed body to peers */
+	public static final String IDENTITY_LENGTH = "X-Dcache-Identity-Length";
+
+	/* What Accept-Encoding a peer asks with */
+	public static final String PEER_ACCEPT = "gzip, deflate";
+
+	public static boolean supported(String encoding) {
+		return encoding != null && (encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("deflate"));
+	}
+
+	/*
+	 * The encoding to compress a committed body with, or null if it should be
+	 * stored as it is.
+	 */
+	public static String choose(String[] metadata, long size) {
+		if (!supported(CacheConfig.COMPRESS) || metadata[8] != null || metadata[1] == null ||
+				size < CacheConfig.COMPRESS_MIN) {
+			return null;
+		}
+		String contentType = metadata[1].toLowerCase();
+		for (String prefix: CacheConfig.COMPRESS_TYPES) {
+			if (!prefix.isEmpty() && contentType.startsWith(prefix.trim())) {
+				return CacheConfig.COMPRESS.toLowerCase();
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Writes raw compressed into packed, returning the compressed size. The
+	 * compressed bytes are also added to digest.
+	 */
+	public static long compress(File raw, File packed, String encoding, MessageDigest digest)
+			throws IOException {
+		InputStream in = new FileInputStream(raw);
+		try {
+			OutputStream file = new BufferedOutputStream(new DigestOutputStream(new FileOutputStream(packed),
+					digest), HttpStreams.BUFFER_SIZE);
+			OutputStream out = encoding.equals("gzip") ? new GZIPOutputStream(file, HttpStreams.BUFFER_SIZE) :
+					new DeflaterOutputStream(file);
+			try {
+				HttpStreams.copy(in, out, null, -1);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		return packed.length();
+	}
+
+	/* The body of in, decompressed */
+	public static InputStream decoder(String encoding, InputStream in) throws IOException {
+		if (encoding.equalsIgnoreCase("gzip")) {
+			return new GZIPInputStream(in, HttpStreams.BUFFER_SIZE);
+		}
+		return new InflaterInputStream(new BufferedInputStream(in, HttpStreams.BUFFER_SIZE));
+	}
+
+	/* True if the request's Accept-Encoding allows the encoding */
+	public static boolean accepts(String request, String encoding) {
+		String accept = null;
+		for (String line: request.split("\r\n")) {
+			if (line.regionMatches(true, 0, "Accept-Encoding:", 0, 16)) {
+				accept = line.substring(16);
+				break;
+			}
+		}
+		if (accept == null) {
+			return false;
+		}
+		for (String coding: accept.split(",")) {
+			String[] parameters = coding.split(";");
+			String name = parameters[0].trim().toLowerCase();
+			if (!name.equals(encoding) && !name.equals("x-" + encoding) && !name.equals("*")) {
+				continue;
+			}
+			for (int i = 1; i < parameters.length; i++) {
+				String parameter = parameters[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						return Double.parseDouble(parameter.substring(2)) > 0;
+					} catch (NumberFormatException e) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/* The header a compressed entry is sent with once decompressed */
+	public static List<String> identityHeader(String[] metadata) {
+		String[] identity = metadata.clone();
+		identity[8] = null;
+		identity[9] = null;
+		long length = metadata[9] == null ? -1 : Long.parseLong(metadata[9]);
+		List<String> header = Freshness.header(identity, length);
+		header.add("Vary: Accept-Encoding");
+		return header;
+	}
+
+	/* Sends a compressed body to a client that can't take it compressed */
+	public static void sendDecoded(String[] metadata, InputStream stored, OutputStream out)
+			throws IOException {
+		OutputStream client = HttpStreams.beginBody(out, identityHeader(metadata));
+		HttpStreams.copy(decoder(metadata[8], stored), client, null, -1);
+		HttpStreams.endBody(client);
+	}
+
+}
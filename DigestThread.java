@@ -0,0 +1,188 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * A thread that keeps the local cache digest up to date and pulls the
+ * digests of peer caches on a schedule. A pull asks for the additions since
+ * the version the puller already holds, and only falls back to the full
+ * filter when the peer has rebuilt its digest or the additions have scrolled
+ * out of its log.
+ *
+ * DIGEST {epoch} {version}
+ *   -> FULL {epoch} {version} {numBits} {numHashes} {base64}
+ *   -> DELTA {epoch} {version} {count}, followed by count urls
+ *
+ */
+public class DigestThread extends Thread {
+
+	private final ServiceDiscovery sd;
+
+	// local digest, guarded by this
+	private CacheDigest local;
+	private long epoch;
+	private long version;
+	private final String[] recent = new String[CacheConfig.DIGEST_LOG];
+
+	private final ConcurrentHashMap<String, PeerDigest> peers =
+			new ConcurrentHashMap<String, PeerDigest>();
+
+	private static class PeerDigest {
+		final CacheDigest digest;
+		final long epoch;
+		volatile long version;
+
+		PeerDigest(CacheDigest digest, long epoch, long version) {
+			this.digest = digest;
+			this.epoch = epoch;
+			this.version = version;
+		}
+	}
+
+	public DigestThread(ServiceDiscovery sd) {
+		super("DigestThread");
+		setDaemon(true);
+		this.sd = sd;
+		rebuild();
+	}
+
+	/* Starts a new epoch with a filter holding every cached url */
+	public synchronized void rebuild() {
+		int expected = Math.max(CacheConfig.DIGEST_ENTRIES, sd.cache.size() * 2);
+		local = new CacheDigest(expected, CacheConfig.DIGEST_FPP, CacheConfig.DIGEST_MAX_BYTES);
+		epoch = System.currentTimeMillis();
+		version = 0;
+		for (long hash: sd.cache.hashes()) {
+			local.add(hash);
+		}
+		System.out.println("> DIGEST: " + sd.cache.size() + " urls in " + local.numBits / 8 +
+				" bytes, fpp " + String.format("%.4f", local.falsePositiveRate(sd.cache.size())));
+	}
+
+	public synchronized void recordAdd(String url) {
+		local.add(url);
+		version++;
+		recent[(int) (version % recent.length)] = url;
+	}
+
+	/* Answers "DIGEST epoch version" from a peer */
+	public synchronized String answer(String request) {
+		String[] parts = request.trim().split(" ");
+		long peerEpoch = -1;
+		long peerVersion = -1;
+		if (parts.length == 3) {
+			try {
+				peerEpoch = Long.parseLong(parts[1]);
+				peerVersion = Long.parseLong(parts[2]);
+			} catch (NumberFormatException e) { }
+		}
+
+		if (peerEpoch != epoch || peerVersion < 0 || peerVersion > version ||
+				version - peerVersion > recent.length) {
+			return "FULL " + epoch + " " + version + " " + local.encode();
+		}
+
+		StringBuilder delta = new StringBuilder();
+		delta.append("DELTA " + epoch + " " + version + " " + (version - peerVersion));
+		for (long v = peerVersion + 1; v <= version; v++) {
+			delta.append("\r\n").append(recent[(int) (v % recent.length)]);
+		}
+		return delta.toString();
+	}
+
+	/* Drops the digest of a peer that is gone */
+	public void forget(String cacheAddr) {
+		peers.remove(cacheAddr);
+	}
+
+	/* True once a digest has been pulled from the peer */
+	public boolean hasDigest(String cacheAddr) {
+		return peers.containsKey(cacheAddr);
+	}
+
+	/*
+	 * True if the peer may hold the url. Peers we have no digest for yet
+	 * must still be asked.
+	 */
+	public boolean mightHave(String cacheAddr, String url) {
+		PeerDigest peer = peers.get(cacheAddr);
+		return peer == null || peer.digest.mightContain(url);
+	}
+
+	public void run() {
+		long pulls = 0;
+		while (true) {
+			try {
+				sleep(CacheConfig.DIGEST_INTERVAL);
+			} catch (InterruptedException e) {
+				break;
+			}
+			pulls++;
+			if (pulls % CacheConfig.DIGEST_REBUILD == 0) {
+				rebuild();
+			}
+			for (String cacheAddr: sd.membership.caches()) {
+				if (!cacheAddr.equals(sd.cacheAddress)) {
+					pull(cacheAddr);
+				}
+			}
+		}
+	}
+
+	private void pull(String cacheAddr) {
+		String remoteIp = cacheAddr.split(":")[0];
+		int remotePort = Integer.parseInt(cacheAddr.split(":")[1]);
+		PeerDigest held = peers.get(cacheAddr);
+
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(remoteIp, remotePort), CacheConfig.PEER_TIMEOUT);
+			socket.setSoTimeout(CacheConfig.PEER_TIMEOUT);
+			PrintWriter out = new PrintWriter(socket.getOutputStream());
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+			out.println("DIGEST " + (held == null ? -1 : held.epoch) + " " +
+					(held == null ? -1 : held.version) + "\r\n");
+			out.flush();
+
+			String line = in.readLine();
+			if (line == null) {
+				return;
+			}
+			String[] header = line.split(" ", 4);
+			if (line.startsWith("FULL ") && header.length == 4) {
+				CacheDigest digest = CacheDigest.decode(header[3]);
+				if (digest != null) {
+					peers.put(cacheAddr, new PeerDigest(digest,
+							Long.parseLong(header[1]), Long.parseLong(header[2])));
+				}
+			} else if (line.startsWith("DELTA ") && held != null && header.length == 4) {
+				int count = Integer.parseInt(header[3]);
+				for (int i = 0; i < count; i++) {
+					String url = in.readLine();
+					if (url == null) {
+						return;
+					}
+					held.digest.add(url);
+				}
+				held.version = Long.parseLong(header[2]);
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Bad digest from " + cacheAddr);
+		} catch (IOException e) {
+			// keep the old digest, the peer is asked directly until it answers
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+
+}
@@ -0,0 +1,421 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * The on-disk tier of the cache. Bodies are stored by content, under the
+ * SHA-256 of the bytes as stored, so urls answering with identical bytes
+ * share one file, counted by the urls pointing at it and deleted with the
+ * last of them. Each url's precomputed response header is stored under its
+ * key, the first 64 bits of the url's SHA-1, as {key}.hdr, so a hit is the
+ * header bytes followed by the body file as it is. Files are sharded into two
+ * levels of directories (ab/cd/abcd...) so that names are fixed length, never
+ * collide in practice, and no directory grows large. The store is bounded by
+ * bytes of bodies and by urls, evicting the least recently used urls when
+ * either is exceeded. Changes are logged to an IndexLog so the index
+ * survives restarts.
+ *
+ * Urls are tracked by key in a CompactLru, and bodies by a key of their
+ * path, so that with the compact index no url is held in memory; an evicted
+ * url is found in the index by its key alone.
+ *
+ */
+public class DiskStore {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/* A body file and the number of urls stored as it */
+	private static class Body {
+		long size;
+		int urls;
+	}
+
+	public final File root;
+	public final long maxBytes;
+	public final int maxObjects;
+	/* fills whose body was already stored, and the bytes not written again */
+	public final LongAdder deduplicated = new LongAdder();
+	public final LongAdder deduplicatedBytes = new LongAdder();
+
+	private final ServiceDiscovery sd;
+	private final IndexLog log;
+	private volatile boolean compacting;
+
+	// guarded by this, url key : stored size in access order
+	private final CompactLru sizes = new CompactLru();
+	// guarded by this, body key : body
+	private final HashMap<Long, Body> bodies = new HashMap<Long, Body>();
+	private long usedBytes;
+
+	public DiskStore(ServiceDiscovery sd, File root, long maxBytes, int maxObjects) {
+		this.sd = sd;
+		this.root = root;
+		this.maxBytes = maxBytes;
+		this.maxObjects = maxObjects;
+		this.log = new IndexLog(root);
+		root.mkdirs();
+		// partial fills left by a crash
+		File[] parts = root.listFiles();
+		if (parts != null) {
+			for (File part: parts) {
+				if (part.getName().endsWith(".part")) {
+					part.delete();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Loads the persisted index, keeping only urls whose body is still on disk
+	 * with the logged size, and restoring their least recently used order.
+	 */
+	public synchronized void load() {
+		long loadTime = System.currentTimeMillis();
+		Map<String, String[]> index;
+		try {
+			index = log.load();
+		} catch (IOException e) {
+			System.err.println("Unable to read cache index: " + e.getMessage());
+			return;
+		}
+		int missing = 0;
+		for (Map.Entry<String, String[]> entry: index.entrySet()) {
+			String[] metadata = entry.getValue();
+			long size;
+			try {
+				size = Long.parseLong(metadata[2]);
+			} catch (NumberFormatException e) {
+				size = -1;
+			}
+			if (metadata[0] == null) {
+				missing++;
+				continue;
+			}
+			Body body = bodies.get(bodyKey(metadata[0]));
+			if (body == null) {
+				if (new File(metadata[0]).length() != size || size < 0) {
+					missing++;
+					continue;
+				}
+				body = new Body();
+				body.size = size;
+				bodies.put(bodyKey(metadata[0]), body);
+				usedBytes += size;
+			} else if (body.size != size) {
+				missing++;
+				continue;
+			}
+			if (sizes.put(key(entry.getKey()), size) >= 0) {
+				// another url with the same key, which this one replaces
+				String[] replaced = sd.cache.removeKey(key(entry.getKey()));
+				if (replaced != null && replaced[0] != null) {
+					release(replaced[0]);
+				}
+			}
+			body.urls++;
+			sd.cache.put(entry.getKey(), metadata);
+		}
+		loadTime = System.currentTimeMillis() - loadTime;
+		System.out.println("> INDEX: loaded " + sizes.size() + " urls, " + bodies.size() + " bodies, " +
+				usedBytes + " bytes in " + loadTime + " ms, " + missing + " missing files");
+		if (missing > 0) {
+			compact();
+		}
+	}
+
+	/* Returns the path of a body named by the url, as they were before bodies were stored by content */
+	public String fileFor(String url) {
+		return fileForHash(sha1(url));
+	}
+
+	/* Returns the path of the header of the url with this key */
+	private String headerFor(long key) {
+		return fileForHash(String.format("%016x", key)) + ".hdr";
+	}
+
+	/* Returns the path for a file named by a hash in hex */
+	public String fileForHash(String hex) {
+		return new File(new File(new File(root, hex.substring(0, 2)), hex.substring(2, 4)), hex).getPath();
+	}
+
+	/* Creates a temporary file for a fill, on the same disk as the store */
+	public File tempFile() throws IOException {
+		return File.createTempFile("fill", ".part", root);
+	}
+
+	/*
+	 * Moves a complete fill into place, or drops it if a body with its hash is
+	 * stored already, publishes it in the index and evicts until the store is
+	 * back within its limits.
+	 */
+	public synchronized void commit(String url, String[] metadata, File temp, long size,
+			byte[] header, String hash) throws IOException {
+		// metadata = [fileName, contentType, size, storedAt, expires, staleWindow, etag, lastModified,
+		//             encoding, identitySize]
+		metadata[0] = fileForHash(hash);
+		Body body = bodies.get(bodyKey(metadata[0]));
+		if (body != null && body.size == size && new File(metadata[0]).length() == size) {
+			temp.delete();
+			deduplicated.increment();
+			deduplicatedBytes.add(size);
+			System.out.println(">>> DEDUPLICATED: " + url + " -> " + hash);
+		} else {
+			File target = new File(metadata[0]);
+			target.getParentFile().mkdirs();
+			Files.move(temp.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			if (body == null) {
+				body = new Body();
+				bodies.put(bodyKey(metadata[0]), body);
+			} else {
+				usedBytes -= body.size;
+			}
+			body.size = size;
+			usedBytes += size;
+		}
+		store(url, metadata, size, header);
+	}
+
+	/*
+	 * Stores url as a body already held, named by hash, whose stored size is
+	 * given. Returns false if no such body is held.
+	 */
+	public synchronized boolean adopt(String url, String[] metadata, String hash, long size,
+			byte[] header) throws IOException {
+		String file = fileForHash(hash);
+		Body body = bodies.get(bodyKey(file));
+		if (body == null || body.size != size || new File(file).length() != size) {
+			return false;
+		}
+		metadata[0] = file;
+		store(url, metadata, size, header);
+		return true;
+	}
+
+	/* Points url at the stored body metadata[0], then evicts */
+	private void store(String url, String[] metadata, long size, byte[] header) throws IOException {
+		metadata[2] = "" + size;
+		if (metadata[3] == null) {
+			metadata[3] = "" + System.currentTimeMillis();
+		}
+		long key = key(url);
+		writeHeader(key, header);
+		String[] old = sizes.put(key, size) < 0 ? null : sd.cache.get(url);
+		if (old == null || !metadata[0].equals(old[0])) {
+			bodies.get(bodyKey(metadata[0])).urls++;
+			if (old != null && old[0] != null) {
+				release(old[0]);
+			}
+		}
+		sd.memory.invalidate(url);
+		sd.cache.put(url, metadata);
+		sd.digests.recordAdd(url);
+		log.put(url, metadata);
+
+		// never what was just stored, the most recently used
+		while ((usedBytes > maxBytes || sizes.size() > maxObjects) && sizes.size() > 1) {
+			long evicted = sizes.eldest();
+			sizes.remove(evicted);
+			drop(evicted);
+			System.out.println(">>> EVICT: " + String.format("%016x", evicted));
+		}
+
+		if (!compacting && log.records() > Math.max(CacheConfig.INDEX_COMPACT, sizes.size() * 2)) {
+			compacting = true;
+			new Thread("IndexCompaction") {
+				public void run() {
+					compact();
+				}
+			}.start();
+		}
+	}
+
+	/*
+	 * Replaces the metadata of a stored url after a revalidation, leaving its
+	 * body where it is. Returns false if the url is no longer stored.
+	 */
+	public synchronized boolean refresh(String url, String[] metadata) {
+		long key = key(url);
+		if (!sizes.contains(key)) {
+			return false;
+		}
+		try {
+			writeHeader(key, HttpStreams.headerBytes(
+					Freshness.header(metadata, Long.parseLong(metadata[2]))));
+		} catch (IOException e) {
+			// header() rebuilds it when it doesn't match
+			new File(headerFor(key)).delete();
+		}
+		sd.memory.invalidate(url);
+		sd.cache.put(url, metadata);
+		log.put(url, metadata);
+		return true;
+	}
+
+	private void writeHeader(long key, byte[] header) throws IOException {
+		File headerTemp = tempFile();
+		try {
+			File target = new File(headerFor(key));
+			target.getParentFile().mkdirs();
+			Files.write(headerTemp.toPath(), header);
+			Files.move(headerTemp.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			headerTemp.delete();
+		}
+	}
+
+	/* Replaces the index log with a snapshot of the current index */
+	public void compact() {
+		try {
+			long[] order;
+			synchronized (this) {
+				order = sizes.keys();
+				log.rotate();
+			}
+			int written = log.writeSnapshot(order, sd.cache);
+			System.out.println("> INDEX: compacted " + written + " urls");
+		} catch (IOException e) {
+			System.err.println("Unable to compact cache index: " + e.getMessage());
+		} finally {
+			compacting = false;
+		}
+	}
+
+	/*
+	 * Returns the stored response header of url for a body of the given
+	 * length, rebuilding it if the header file is missing or stale.
+	 */
+	public byte[] header(String url, String[] metadata, long length) {
+		try {
+			byte[] header = Files.readAllBytes(new File(headerFor(key(url))).toPath());
+			if (new String(header, HttpStreams.ASCII).contains("Content-Length: " + length + "\r\n")) {
+				return header;
+			}
+		} catch (IOException e) { }
+		return HttpStreams.headerBytes(Freshness.header(metadata, length));
+	}
+
+	/* Forces the index log to disk */
+	public void syncIndex() {
+		log.sync();
+	}
+
+	/* Marks the url as recently used */
+	public void touch(String url) {
+		long key = key(url);
+		synchronized (this) {
+			sizes.touch(key);
+		}
+	}
+
+	/* Forgets a url */
+	public synchronized void remove(String url) {
+		long key = key(url);
+		sizes.remove(key);
+		sd.memory.invalidate(url);
+		drop(key);
+	}
+
+	/*
+	 * Forgets a url whose body has gone missing, unless it has been stored
+	 * again since metadata was read.
+	 */
+	public synchronized void lost(String url, String[] metadata) {
+		String[] current = sd.cache.get(url);
+		if (current == null || metadata[0].equals(current[0])) {
+			remove(url);
+		}
+	}
+
+	/* The hash naming the body of metadata, or null if it isn't stored by content */
+	public static String hashOf(String[] metadata) {
+		if (metadata == null) {
+			return null;
+		}
+		String name = new File(metadata[0]).getName();
+		return name.length() == 64 ? name : null;
+	}
+
+	public synchronized long usedBytes() {
+		return usedBytes;
+	}
+
+	public synchronized int objects() {
+		return sizes.size();
+	}
+
+	/* Distinct bodies stored, at most objects() */
+	public synchronized int bodies() {
+		return bodies.size();
+	}
+
+	/*
+	 * Forgets the url with this key. Any copy of it in memory is left to age
+	 * out, as it is only served while the url is in the index.
+	 */
+	private void drop(long key) {
+		String[] metadata = sd.cache.removeKey(key);
+		log.remove(key);
+		new File(headerFor(key)).delete();
+		if (metadata != null && metadata[0] != null) {
+			release(metadata[0]);
+		}
+	}
+
+	/* Deletes a body once no url is stored as it */
+	private void release(String file) {
+		Body body = bodies.get(bodyKey(file));
+		if (body != null && --body.urls > 0) {
+			return;
+		}
+		if (body != null) {
+			bodies.remove(bodyKey(file));
+			usedBytes -= body.size;
+		}
+		new File(file).delete();
+	}
+
+	/* The key of a url, as the compact index and CompactLru take it */
+	static long key(String url) {
+		return CompactCacheIndex.key(sha1(url));
+	}
+
+	/* The key of a body's path */
+	private static long bodyKey(String file) {
+		return CacheDigest.hash(file);
+	}
+
+	static MessageDigest digest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String sha1(String url) {
+		return hex(digest("SHA-1").digest(url.getBytes(UTF8)));
+	}
+
+	static String hex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+}
@@ -14,8 +14,17 @@ public class DistributedProxyCache {
     		int port = -1;
         	try {    		
         		port = Integer.parseInt(args[0]);
-        		ServiceDiscovery sd = new ServiceDiscovery(port);
-        		sd.announce(false);
+        		final ServiceDiscovery sd = new ServiceDiscovery(port);
+        		sd.announce();
+        		Runtime.getRuntime().addShutdownHook(new Thread("Leaving") {
+        			public void run() {
+        				sd.leave();
+        				// let queued cache fills reach the disk
+        				sd.writes.flush(5000);
+        			}
+        		});
+        		sd.digests.start();
+        		sd.replicator.start();
         		new ProxyCacheThread(port, sd).start();
         		sd.listen();
         	} catch (NumberFormatException e) {
@@ -0,0 +1,69 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * Remembers host lookups for a short time so that repeated fetches from the
+ * same web server don't each wait on DNS. Java doesn't expose the record
+ * TTL, so entries live for the smaller of dcache.dnsTtl and the JVM's own
+ * networkaddress.cache.ttl when that is set.
+ *
+ */
+public class DnsCache {
+
+	private static class Entry {
+		final InetAddress[] addresses;
+		final long expires;
+
+		Entry(InetAddress[] addresses, long expires) {
+			this.addresses = addresses;
+			this.expires = expires;
+		}
+	}
+
+	private final long ttl;
+	private final int maxEntries;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	public DnsCache(long ttl, int maxEntries) {
+		long jvmTtl = -1;
+		try {
+			String property = Security.getProperty("networkaddress.cache.ttl");
+			if (property != null) {
+				jvmTtl = Long.parseLong(property.trim()) * 1000;
+			}
+		} catch (NumberFormatException e) { }
+		this.ttl = jvmTtl >= 0 ? Math.min(ttl, jvmTtl) : ttl;
+		this.maxEntries = maxEntries;
+	}
+
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		long now = System.currentTimeMillis();
+		Entry entry = entries.get(host);
+		if (entry != null && entry.expires > now) {
+			return entry.addresses;
+		}
+		InetAddress[] addresses = InetAddress.getAllByName(host);
+		if (ttl > 0) {
+			if (entries.size() >= maxEntries) {
+				// drop expired lookups, or everything if none have expired
+				for (Map.Entry<String, Entry> old: entries.entrySet()) {
+					if (old.getValue().expires <= now) {
+						entries.remove(old.getKey(), old.getValue());
+					}
+				}
+				if (entries.size() >= maxEntries) {
+					entries.clear();
+				}
+			}
+			entries.put(host, new Entry(addresses, now + ttl));
+		}
+		return addresses;
+	}
+
+}
@@ -0,0 +1,233 @@
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * How long a cached response may be served without asking the web server,
+ * after RFC 9111. The freshness lifetime comes from s-maxage or max-age, then
+ * Expires, then a heuristic of a tenth of the time since Last-Modified capped
+ * at dcache.heuristicTtl, which is also used when the response says nothing.
+ * Responses marked no-store or private are not cached, and no-cache ones are
+ * stored already stale so every use is revalidated. Once stale, a response
+ * may still be served for its stale-while-revalidate window (the origin's
+ * directive, or dcache.staleWhileRevalidate) while it is refreshed.
+ *
+ * Freshness is kept in the metadata after the size and storedAt:
+ *
+ * [fileName, contentType, size, storedAt, expires, staleWindow, etag, lastModified,
+ *  encoding, identitySize]
+ *
+ */
+public class Freshness {
+
+	private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+			.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	/* False if a shared cache must not store the response */
+	public static boolean storable(List<String> header) {
+		Map<String, String> directives = cacheControl(header);
+		return !directives.containsKey("no-store") && !directives.containsKey("private");
+	}
+
+	/*
+	 * Fills in the freshness of metadata from a 200, or a 304 refreshing it,
+	 * received at responseTime. A 304 that gives no lifetime of its own keeps
+	 * the lifetime the entry had.
+	 */
+	public static void stamp(String[] metadata, List<String> header, long responseTime) {
+		Map<String, String> directives = cacheControl(header);
+		long date = parseDate(HttpStreams.headerValue(header, "Date"));
+		if (date < 0) {
+			date = responseTime;
+		}
+		long age = Math.max(0, responseTime - date);
+		long ageHeader = seconds(HttpStreams.headerValue(header, "Age"));
+		if (ageHeader > 0) {
+			age = Math.max(age, ageHeader);
+		}
+
+		String etag = HttpStreams.headerValue(header, "ETag");
+		String lastModified = HttpStreams.headerValue(header, "Last-Modified");
+		if (etag != null) {
+			metadata[6] = etag;
+		}
+		if (lastModified != null) {
+			metadata[7] = lastModified;
+		}
+
+		long lifetime;
+		String expires = HttpStreams.headerValue(header, "Expires");
+		if (directives.containsKey("no-cache")) {
+			lifetime = 0;
+		} else if (directives.containsKey("s-maxage")) {
+			lifetime = seconds(directives.get("s-maxage"));
+		} else if (directives.containsKey("max-age")) {
+			lifetime = seconds(directives.get("max-age"));
+		} else if (expires != null) {
+			// an invalid date means already expired
+			long expiry = parseDate(expires);
+			lifetime = expiry < 0 ? 0 : expiry - date;
+		} else if (metadata[4] != null && metadata[3] != null) {
+			// a 304 without a lifetime renews the one it had
+			lifetime = Long.parseLong(metadata[4]) - Long.parseLong(metadata[3]);
+		} else if (metadata[7] != null && parseDate(metadata[7]) >= 0) {
+			lifetime = Math.min((date - parseDate(metadata[7])) / 10, CacheConfig.HEURISTIC_TTL);
+		} else {
+			lifetime = CacheConfig.HEURISTIC_TTL;
+		}
+
+		long staleWindow = CacheConfig.STALE_WHILE_REVALIDATE;
+		if (directives.containsKey("stale-while-revalidate")) {
+			staleWindow = seconds(directives.get("stale-while-revalidate"));
+		}
+		if (directives.containsKey("must-revalidate") || directives.containsKey("proxy-revalidate") ||
+				directives.containsKey("no-cache")) {
+			staleWindow = 0;
+		}
+
+		metadata[3] = "" + responseTime;
+		metadata[4] = "" + (responseTime + Math.max(0, lifetime - age));
+		metadata[5] = "" + Math.max(0, staleWindow);
+	}
+
+	public static boolean fresh(String[] metadata, long now) {
+		return now < expires(metadata);
+	}
+
+	/* True if a stale entry may be served while it is revalidated */
+	public static boolean staleUsable(String[] metadata, long now) {
+		return metadata[5] != null && now < expires(metadata) + Long.parseLong(metadata[5]);
+	}
+
+	/* If-None-Match and If-Modified-Since lines for revalidating the entry */
+	public static String validators(String[] metadata) {
+		String lines = "";
+		if (metadata[6] != null) {
+			lines += "If-None-Match: " + metadata[6] + "\r\n";
+		}
+		if (metadata[7] != null) {
+			lines += "If-Modified-Since: " + metadata[7] + "\r\n";
+		}
+		return lines;
+	}
+
+	/*
+	 * The response header a cached entry is served with, telling clients and
+	 * peers how long it stays fresh.
+	 */
+	public static List<String> header(String[] metadata, long length) {
+		List<String> header = HttpStreams.responseHeader(metadata[1], length);
+		if (metadata[4] != null) {
+			header.add("Expires: " + HTTP_DATE.format(Instant.ofEpochMilli(expires(metadata))));
+		}
+		if (metadata[5] != null && Long.parseLong(metadata[5]) > 0) {
+			header.add("Cache-Control: stale-while-revalidate=" + Long.parseLong(metadata[5]) / 1000);
+		}
+		if (metadata[6] != null) {
+			header.add("ETag: " + metadata[6]);
+		}
+		if (metadata[7] != null) {
+			header.add("Last-Modified: " + metadata[7]);
+		}
+		if (metadata.length > 8 && metadata[8] != null) {
+			header.add("Content-Encoding: " + metadata[8]);
+			header.add("Vary: Accept-Encoding");
+			if (metadata[9] != null) {
+				header.add(Compression.IDENTITY_LENGTH + ": " + metadata[9]);
+			}
+		}
+		return header;
+	}
+
+	/* Entries without freshness, stored before it was kept, are stale */
+	private static long expires(String[] metadata) {
+		if (metadata.length < 5 || metadata[4] == null) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(metadata[4]);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/* The lifetime a response gives itself with s-maxage or max-age in ms, or -1 */
+	public static long maxAge(List<String> header) {
+		Map<String, String> directives = cacheControl(header);
+		if (directives.containsKey("s-maxage")) {
+			return seconds(directives.get("s-maxage"));
+		}
+		if (directives.containsKey("max-age")) {
+			return seconds(directives.get("max-age"));
+		}
+		return -1;
+	}
+
+	public static String formatDate(long millis) {
+		return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+	}
+
+	/* Cache-Control directives by lower case name, values unquoted */
+	private static Map<String, String> cacheControl(List<String> header) {
+		Map<String, String> directives = new HashMap<String, String>();
+		for (int i = 1; i < header.size(); i++) {
+			String line = header.get(i);
+			if (!line.regionMatches(true, 0, "Cache-Control:", 0, 14)) {
+				continue;
+			}
+			for (String directive: line.substring(14).split(",")) {
+				String name = directive.trim();
+				String value = null;
+				int equals = name.indexOf('=');
+				if (equals != -1) {
+					value = name.substring(equals + 1).trim().replace("\"", "");
+					name = name.substring(0, equals).trim();
+				}
+				if (!name.isEmpty()) {
+					directives.put(name.toLowerCase(), value);
+				}
+			}
+		}
+		return directives;
+	}
+
+	/* A delta-seconds value in ms, 0 if it doesn't parse */
+	private static long seconds(String value) {
+		if (value == null) {
+			return 0;
+		}
+		value = value.trim();
+		if (value.length() > 10 && value.matches("\\d+")) {
+			// overflowing values count as 2^31 seconds
+			return (1L << 31) * 1000;
+		}
+		try {
+			return Math.max(0, Long.parseLong(value)) * 1000;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/* An HTTP date in ms, or -1 */
+	public static long parseDate(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+					.toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,108 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * A lock-free latency histogram in nanoseconds. Buckets are log-linear:
+ * every power of two is split into eight buckets, so a recorded value is
+ * known to within 12.5%, and values up to about 18 minutes are kept apart.
+ * Recording is a few atomic adds, cheap enough for every request.
+ *
+ */
+public class Histogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(bucket(nanos));
+		count.increment();
+		sum.add(nanos);
+		long seen = max.get();
+		while (nanos > seen && !max.compareAndSet(seen, nanos)) {
+			seen = max.get();
+		}
+	}
+
+	/* Records the time since a System.nanoTime() start */
+	public void since(long start) {
+		record(System.nanoTime() - start);
+	}
+
+	public long count() {
+		return count.sum();
+	}
+
+	public long sum() {
+		return sum.sum();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	public long mean() {
+		long n = count.sum();
+		return n == 0 ? 0 : sum.sum() / n;
+	}
+
+	/*
+	 * The value at quantile q (0.5 for the median), as the top of its bucket.
+	 * Concurrent recording can leave it a bucket off.
+	 */
+	public long percentile(double q) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(q * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(lowest(i + 1) - 1, max.get());
+			}
+		}
+		return max.get();
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB - 1);
+		return (exponent - SUB_BITS + 1) * SUB + sub;
+	}
+
+	/* Smallest value in a bucket */
+	private static long lowest(int bucket) {
+		if (bucket < SUB) {
+			return bucket;
+		}
+		int exponent = bucket / SUB + SUB_BITS - 1;
+		return (long) (SUB + bucket % SUB) << (exponent - SUB_BITS);
+	}
+
+}
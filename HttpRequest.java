@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * A client's request header, parsed byte by byte as it is read. One
+ * HttpRequest is kept per connection and refilled for every request on it, so
+ * the header lands in the same buffer each time and no String is built per
+ * line. Lines are stored ending in \r\n whatever the client sent, and the
+ * request line is split once, on demand. A header over dcache.maxHeader bytes
+ * or dcache.maxHeaderLines lines is refused.
+ *
+ */
+public class HttpRequest {
+
+	private byte[] buffer = new byte[1024];
+	private int length;
+	/* start of each line in buffer; the line ends 2 bytes before the next */
+	private int[] lines = new int[32];
+	private int lineCount;
+
+	private String method;
+	private String target;
+	private String text;
+
+	/*
+	 * Reads the next request header up to its blank line, skipping blank
+	 * lines before it. Returns false if the stream ended first.
+	 */
+	public boolean read(InputStream in) throws IOException {
+		length = 0;
+		lineCount = 0;
+		method = null;
+		target = null;
+		text = null;
+		int lineStart = 0;
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c != '\n') {
+				if (length - lineStart >= HttpStreams.MAX_LINE) {
+					throw new IOException("Header line too long");
+				}
+				append((byte) c);
+				continue;
+			}
+			int end = length;
+			if (end > lineStart && buffer[end - 1] == '\r') {
+				end--;
+			}
+			if (blank(lineStart, end)) {
+				length = lineStart;
+				if (lineCount == 0) {
+					// skip blank lines between requests
+					continue;
+				}
+				return true;
+			}
+			length = end;
+			endLine(lineStart);
+			lineStart = length;
+		}
+		if (!blank(lineStart, length)) {
+			// a last line without its newline
+			endLine(lineStart);
+		} else {
+			length = lineStart;
+		}
+		return lineCount > 0;
+	}
+
+	public String method() {
+		split();
+		return method;
+	}
+
+	/* The request target, e.g. /http://example.com/, or null */
+	public String target() {
+		split();
+		return target;
+	}
+
+	/* True if the request line is exactly line */
+	public boolean is(String line) {
+		return lineCount > 0 && matches(0, line, false);
+	}
+
+	/* True if the request line starts with prefix */
+	public boolean startsWith(String prefix) {
+		return lineCount > 0 && matches(0, prefix, true);
+	}
+
+	public boolean http10() {
+		int end = lineEnd(0);
+		return end >= 8 && regionIs(end - 8, "HTTP/1.0", false);
+	}
+
+	/* The value of the named header field, or null */
+	public String header(String name) {
+		for (int i = 1; i < lineCount; i++) {
+			int start = lines[i];
+			int colon = start + name.length();
+			if (colon < lineEnd(i) && buffer[colon] == ':' && regionIs(start, name, true)) {
+				return new String(buffer, colon + 1, lineEnd(i) - colon - 1, HttpStreams.ASCII).trim();
+			}
+		}
+		return null;
+	}
+
+	/* HTTP/1.1 keeps the connection unless told otherwise, HTTP/1.0 only if asked */
+	public boolean keepAlive() {
+		String connection = header("Connection");
+		if (http10()) {
+			return connection != null && connection.equalsIgnoreCase("keep-alive");
+		}
+		return connection == null || !connection.equalsIgnoreCase("close");
+	}
+
+	/* The whole header as lines joined by \r\n, built once per request */
+	public String text() {
+		if (text == null) {
+			text = lineCount == 0 ? "" : new String(buffer, 0, length - 2, HttpStreams.ASCII);
+		}
+		return text;
+	}
+
+	public String toString() {
+		return text();
+	}
+
+	private void split() {
+		if (method != null || lineCount == 0) {
+			return;
+		}
+		int end = lineEnd(0);
+		int space = indexOf(' ', 0, end);
+		if (space == -1) {
+			method = new String(buffer, 0, end, HttpStreams.ASCII);
+			return;
+		}
+		method = new String(buffer, 0, space, HttpStreams.ASCII);
+		int targetEnd = indexOf(' ', space + 1, end);
+		if (targetEnd == -1) {
+			targetEnd = end;
+		}
+		target = new String(buffer, space + 1, targetEnd - space - 1, HttpStreams.ASCII);
+	}
+
+	private int lineEnd(int line) {
+		return (line + 1 < lineCount ? lines[line + 1] : length) - 2;
+	}
+
+	private boolean matches(int line, String value, boolean prefix) {
+		int size = lineEnd(line) - lines[line];
+		if (prefix ? size < value.length() : size != value.length()) {
+			return false;
+		}
+		return regionIs(lines[line], value, false);
+	}
+
+	private boolean regionIs(int start, String value, boolean ignoreCase) {
+		for (int i = 0; i < value.length(); i++) {
+			int a = buffer[start + i] & 0xff;
+			int b = value.charAt(i);
+			if (a != b && !(ignoreCase && Character.toLowerCase(a) == Character.toLowerCase(b))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int indexOf(char c, int from, int end) {
+		for (int i = from; i < end; i++) {
+			if (buffer[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private boolean blank(int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (buffer[i] != ' ' && buffer[i] != '\t') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* Ends the line begun at start with \r\n */
+	private void endLine(int start) throws IOException {
+		if (lineCount == CacheConfig.MAX_HEADER_LINES) {
+			throw new IOException("Too many header lines");
+		}
+		append((byte) '\r');
+		append((byte) '\n');
+		if (lineCount == lines.length) {
+			int[] grown = new int[lines.length * 2];
+			System.arraycopy(lines, 0, grown, 0, lineCount);
+			lines = grown;
+		}
+		lines[lineCount++] = start;
+	}
+
+	private void append(byte b) throws IOException {
+		if (length >= CacheConfig.MAX_HEADER + 2) {
+			throw new IOException("Request header too large");
+		}
+		if (length == buffer.length) {
+			byte[] grown = new byte[Math.min(buffer.length * 2, CacheConfig.MAX_HEADER + 2)];
+			System.arraycopy(buffer, 0, grown, 0, length);
+			buffer = grown;
+		}
+		buffer[length++] = b;
+	}
+
+}
@@ -0,0 +1,445 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * Byte level helpers for reading HTTP headers and streaming bodies between
+ * sockets and cache files without decoding them.
+ *
+ */
+public class HttpStreams {
+
+	public static final Charset ASCII = Charset.forName("ISO-8859-1");
+	public static final int BUFFER_SIZE = 16 * 1024;
+	public static final int MAX_LINE = 64 * 1024;
+
+	private static final byte[] CRLF = "\r\n".getBytes(ASCII);
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(ASCII);
+
+	/* a body nobody reads */
+	public static final OutputStream DISCARD = new OutputStream() {
+		public void write(int b) { }
+
+		public void write(byte[] buf, int off, int len) { }
+	};
+
+	/* one copy buffer per thread, reused for every body */
+	private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	/* Reads a line ending in \n, without the \r\n. Null at end of stream. */
+	public static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				int end = line.length();
+				if (end > 0 && line.charAt(end - 1) == '\r') {
+					line.setLength(end - 1);
+				}
+				return line.toString();
+			}
+			if (line.length() >= MAX_LINE) {
+				throw new IOException("Header line too long");
+			}
+			line.append((char) c);
+		}
+		return line.length() == 0 ? null : line.toString();
+	}
+
+	/*
+	 * Reads header lines up to the blank line. Returns null if the stream
+	 * ended before any line was read.
+	 */
+	public static List<String> readHeader(InputStream in) throws IOException {
+		List<String> header = new ArrayList<String>();
+		String line;
+		while ((line = readLine(in)) != null) {
+			if (line.trim().isEmpty()) {
+				if (header.isEmpty()) {
+					// skip blank lines between requests
+					continue;
+				}
+				break;
+			}
+			header.add(line);
+		}
+		return header.isEmpty() ? null : header;
+	}
+
+	/* Returns the value of the named header field, or null */
+	public static String headerValue(List<String> header, String name) {
+		for (int i = 1; i < header.size(); i++) {
+			String line = header.get(i);
+			int colon = line.indexOf(':');
+			if (colon == name.length() && line.regionMatches(true, 0, name, 0, colon)) {
+				return line.substring(colon + 1).trim();
+			}
+		}
+		return null;
+	}
+
+	/* Status code of a response header, or -1 */
+	public static int statusCode(List<String> header) {
+		String[] status = header.get(0).split(" ");
+		try {
+			return status.length > 1 ? Integer.parseInt(status[1]) : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/* Content-Length of a message, or -1 when it is chunked or not given */
+	public static long contentLength(List<String> header) {
+		if (chunked(header)) {
+			return -1;
+		}
+		String length = headerValue(header, "Content-Length");
+		if (length != null) {
+			try {
+				return Long.parseLong(length);
+			} catch (NumberFormatException e) { }
+		}
+		return -1;
+	}
+
+	public static boolean chunked(List<String> header) {
+		String encoding = headerValue(header, "Transfer-Encoding");
+		return encoding != null && encoding.toLowerCase().contains("chunked");
+	}
+
+	/* True if the connection stays open after this message */
+	public static boolean keepAlive(List<String> header) {
+		String connection = headerValue(header, "Connection");
+		if (header.get(0).contains("HTTP/1.0")) {
+			return connection != null && connection.equalsIgnoreCase("keep-alive");
+		}
+		return connection == null || !connection.equalsIgnoreCase("close");
+	}
+
+	/*
+	 * The body of a response as a stream of its own, framed by chunked
+	 * encoding, Content-Length, or the end of the connection.
+	 */
+	public static InputStream body(List<String> header, InputStream in) {
+		int status = statusCode(header);
+		if ((status >= 100 && status < 200) || status == 204 || status == 304) {
+			return new LengthInputStream(in, 0);
+		}
+		if (chunked(header)) {
+			return new ChunkedInputStream(in);
+		}
+		long length = contentLength(header);
+		return length >= 0 ? new LengthInputStream(in, length) : in;
+	}
+
+	/* True if the body ends before the connection does */
+	public static boolean framed(List<String> header) {
+		int status = statusCode(header);
+		return (status >= 100 && status < 200) || status == 204 || status == 304 ||
+				chunked(header) || contentLength(header) >= 0;
+	}
+
+	/* Writes header lines followed by the blank line */
+	public static void writeHeader(OutputStream out, List<String> header) throws IOException {
+		out.write(headerBytes(header));
+	}
+
+	public static byte[] headerBytes(List<String> header) {
+		StringBuilder sb = new StringBuilder();
+		for (String line: header) {
+			sb.append(line).append("\r\n");
+		}
+		sb.append("\r\n");
+		return sb.toString().getBytes(ASCII);
+	}
+
+	/*
+	 * Writes a response header and returns the stream its body goes to. A
+	 * body of unknown length is sent chunked to HTTP/1.1 clients, and to
+	 * anyone else delimited by closing the connection.
+	 */
+	public static OutputStream beginBody(OutputStream out, List<String> header) throws IOException {
+		if (framed(header)) {
+			writeHeader(out, header);
+			return out;
+		}
+		List<String> framedHeader = new ArrayList<String>(header);
+		if (out instanceof SocketOutput && ((SocketOutput) out).chunked) {
+			framedHeader.add("Transfer-Encoding: chunked");
+			writeHeader(out, framedHeader);
+			return new ChunkedOutputStream(out);
+		}
+		if (out instanceof SocketOutput) {
+			((SocketOutput) out).closeAfter = true;
+		}
+		framedHeader.add("Connection: close");
+		writeHeader(out, framedHeader);
+		return out;
+	}
+
+	/* Ends a body started with beginBody */
+	public static void endBody(OutputStream body) throws IOException {
+		if (body instanceof ChunkedOutputStream) {
+			((ChunkedOutputStream) body).finish();
+		}
+	}
+
+	/* Header lines for a 200, without a length when it isn't known */
+	public static List<String> responseHeader(String contentType, long length) {
+		List<String> header = new ArrayList<String>();
+		header.add("HTTP/1.1 200 Document Follows");
+		if (contentType != null) {
+			header.add("Content-Type: " + contentType);
+		}
+		if (length >= 0) {
+			header.add("Content-Length: " + length);
+		}
+		return header;
+	}
+
+	/* An output that sends ranges of files itself, like a peer's framed body */
+	public interface FileOutput {
+		/* Sends count bytes of file from position, false if it can't without the heap */
+		boolean transfer(FileChannel file, long position, long count) throws IOException;
+	}
+
+	/*
+	 * Sends count bytes of a file. When the client is a socket channel, or a
+	 * FileOutput over one, the kernel moves the bytes from the file to the
+	 * socket without copying them through the heap.
+	 */
+	public static void transfer(FileChannel file, long position, long count, OutputStream out)
+			throws IOException {
+		if (out instanceof FileOutput && ((FileOutput) out).transfer(file, position, count)) {
+			return;
+		}
+		if (out instanceof SocketOutput && ((SocketOutput) out).channel != null) {
+			out.flush();
+			WritableByteChannel channel = ((SocketOutput) out).channel;
+			long end = position + count;
+			while (position < end) {
+				long sent = file.transferTo(position, end - position, channel);
+				if (sent <= 0 && file.size() < end) {
+					throw new IOException("File ended before " + count + " bytes were sent");
+				}
+				position += sent;
+				((SocketOutput) out).written += sent;
+			}
+			return;
+		}
+		copy(Channels.newInputStream(file.position(position)), out, null, count);
+	}
+
+	/* The next length bytes of a stream */
+	private static class LengthInputStream extends InputStream {
+		private final InputStream in;
+		private long remaining;
+
+		LengthInputStream(InputStream in, long length) {
+			this.in = in;
+			this.remaining = length;
+		}
+
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+		}
+
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int n = in.read(buf, off, (int) Math.min(len, remaining));
+			if (n == -1) {
+				throw new IOException("Connection closed with " + remaining + " bytes to go");
+			}
+			remaining -= n;
+			return n;
+		}
+	}
+
+	/* Decodes a chunked body, ending after the last chunk and its trailer */
+	private static class ChunkedInputStream extends InputStream {
+		private final InputStream in;
+		private long chunk;
+		private boolean last;
+
+		ChunkedInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+		}
+
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if (last) {
+				return -1;
+			}
+			if (chunk == 0) {
+				String size = readLine(in);
+				if (size == null) {
+					throw new IOException("Connection closed inside a chunked body");
+				}
+				int extension = size.indexOf(';');
+				try {
+					chunk = Long.parseLong((extension == -1 ? size : size.substring(0, extension)).trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new IOException("Bad chunk size: " + size);
+				}
+				if (chunk == 0) {
+					// trailer fields up to the blank line
+					String trailer;
+					while ((trailer = readLine(in)) != null && !trailer.isEmpty()) { }
+					last = true;
+					return -1;
+				}
+			}
+			int n = in.read(buf, off, (int) Math.min(len, chunk));
+			if (n == -1) {
+				throw new IOException("Connection closed inside a chunk");
+			}
+			chunk -= n;
+			if (chunk == 0) {
+				readLine(in);
+			}
+			return n;
+		}
+	}
+
+	/* Input that copies what is read into a cache fill */
+	public static InputStream tee(final InputStream in, final CacheFill fill) {
+		return new InputStream() {
+			private CacheFill tee = fill;
+
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+			}
+
+			public int read(byte[] buf, int off, int len) throws IOException {
+				int n = in.read(buf, off, len);
+				if (n > 0 && tee != null && !tee.write(buf, off, n)) {
+					tee = null;
+				}
+				return n;
+			}
+		};
+	}
+
+	/* Bytes written so far to a client's stream, 0 if it isn't counted */
+	public static long written(OutputStream out) {
+		return out instanceof SocketOutput ? ((SocketOutput) out).written : 0;
+	}
+
+	/* Chunked transfer-encoding, one chunk per write */
+	private static class ChunkedOutputStream extends OutputStream {
+		private final OutputStream out;
+
+		ChunkedOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		public void write(byte[] buf, int off, int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+			out.write((Integer.toHexString(len) + "\r\n").getBytes(ASCII));
+			out.write(buf, off, len);
+			out.write(CRLF);
+		}
+
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		void finish() throws IOException {
+			out.write(LAST_CHUNK);
+		}
+	}
+
+	/*
+	 * Buffered client output that also exposes the socket's channel, and
+	 * knows how the response being written can be framed.
+	 */
+	public static class SocketOutput extends BufferedOutputStream {
+		final WritableByteChannel channel;
+		private boolean chunked;
+		private boolean closeAfter;
+		/* bytes written to the client, only touched by the serving thread */
+		long written;
+
+		public SocketOutput(OutputStream out, WritableByteChannel channel) {
+			super(out, BUFFER_SIZE);
+			this.channel = channel;
+		}
+
+		/* Called before each response, chunked if the client speaks HTTP/1.1 */
+		public void startResponse(boolean chunked) {
+			this.chunked = chunked;
+			this.closeAfter = false;
+		}
+
+		/* True if the response was delimited by closing the connection */
+		public boolean closeAfter() {
+			return closeAfter;
+		}
+
+		public void write(int b) throws IOException {
+			super.write(b);
+			written++;
+		}
+
+		public void write(byte[] buf, int off, int len) throws IOException {
+			super.write(buf, off, len);
+			written += len;
+		}
+	}
+
+	/*
+	 * Copies length bytes, or everything up to the end of the stream when
+	 * length is negative, teeing them into the cache fill. A failing fill is
+	 * aborted without interrupting the copy.
+	 */
+	public static long copy(InputStream in, OutputStream out, CacheFill tee, long length)
+			throws IOException {
+		byte[] buf = BUFFER.get();
+		long copied = 0;
+		while (length < 0 || copied < length) {
+			int want = length < 0 ? buf.length : (int) Math.min(buf.length, length - copied);
+			int n = in.read(buf, 0, want);
+			if (n == -1) {
+				if (length >= 0) {
+					throw new IOException("Stream ended after " + copied + " of " + length + " bytes");
+				}
+				break;
+			}
+			out.write(buf, 0, n);
+			if (tee != null && !tee.write(buf, 0, n)) {
+				tee = null;
+			}
+			copied += n;
+		}
+		return copied;
+	}
+
+}
@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * Keep-alive client connections waiting between requests, watched by one
+ * selector so they don't hold a worker while idle. A connection is parked
+ * once it has nothing left to read, handed back to the workers as soon as
+ * the client sends again, and closed once it has sat idle for
+ * dcache.clientIdle ms.
+ *
+ */
+public class IdleConnections extends Thread {
+
+	private final ProxyCacheThread proxy;
+	private final ExecutorService workers;
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<ProxyCacheThread.Connection> parking =
+			new ConcurrentLinkedQueue<ProxyCacheThread.Connection>();
+
+	public IdleConnections(ProxyCacheThread proxy, ExecutorService workers) throws IOException {
+		super("IdleConnections");
+		this.proxy = proxy;
+		this.workers = workers;
+		this.selector = Selector.open();
+		setDaemon(true);
+	}
+
+	/* Waits for the client to send again, off the worker that served it */
+	public void park(ProxyCacheThread.Connection connection) {
+		connection.idleSince = System.currentTimeMillis();
+		parking.add(connection);
+		selector.wakeup();
+	}
+
+	public void run() {
+		long sweepEvery = Math.max(10, CacheConfig.CLIENT_IDLE / 10);
+		long nextSweep = System.currentTimeMillis() + sweepEvery;
+		List<ProxyCacheThread.Connection> ready = new ArrayList<ProxyCacheThread.Connection>();
+		List<ProxyCacheThread.Connection> expired = new ArrayList<ProxyCacheThread.Connection>();
+		while (true) {
+			try {
+				selector.select(sweepEvery);
+				ProxyCacheThread.Connection parked;
+				while ((parked = parking.poll()) != null) {
+					try {
+						SocketChannel channel = parked.socket.getChannel();
+						channel.configureBlocking(false);
+						channel.register(selector, SelectionKey.OP_READ, parked);
+					} catch (IOException e) {
+						expired.add(parked);
+					}
+				}
+				for (SelectionKey key: selector.selectedKeys()) {
+					key.cancel();
+					ready.add((ProxyCacheThread.Connection) key.attachment());
+				}
+				selector.selectedKeys().clear();
+				long now = System.currentTimeMillis();
+				if (now >= nextSweep) {
+					for (SelectionKey key: selector.keys()) {
+						ProxyCacheThread.Connection idle = (ProxyCacheThread.Connection) key.attachment();
+						if (key.isValid() && now - idle.idleSince >= CacheConfig.CLIENT_IDLE) {
+							key.cancel();
+							expired.add(idle);
+						}
+					}
+					nextSweep = now + sweepEvery;
+				}
+				// drops the cancelled keys, so their channels may block again
+				selector.selectNow();
+
+				for (final ProxyCacheThread.Connection connection: ready) {
+					try {
+						connection.socket.getChannel().configureBlocking(true);
+					} catch (IOException e) {
+						expired.add(connection);
+						continue;
+					}
+					workers.execute(new Runnable() {
+						public void run() {
+							proxy.handleClient(connection);
+						}
+					});
+				}
+				for (ProxyCacheThread.Connection connection: expired) {
+					proxy.closeClient(connection);
+				}
+			} catch (IOException e) {
+				System.err.println("Unable to watch idle connections: " + e.getMessage());
+			} finally {
+				ready.clear();
+				expired.clear();
+			}
+		}
+	}
+
+}
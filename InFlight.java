@@ -0,0 +1,65 @@
+/**
+ *
+ * @author smmorneau
+ *
+ * A miss being fetched by one request, which later requests for the same
+ * url wait on instead of fetching it again. The fetching request attaches
+ * its cache fill once the response turns out to be cacheable, and the
+ * waiting requests follow that fill.
+ *
+ */
+public class InFlight {
+
+	// guarded by this
+	private CacheFill fill;
+	private boolean over;
+
+	public synchronized void attach(CacheFill fill) {
+		if (this.fill == null) {
+			this.fill = fill;
+			fill.holds(this);
+			notifyAll();
+		}
+	}
+
+	/*
+	 * True if the fill is left to take the url out of flight, once it is
+	 * published
+	 */
+	public synchronized boolean handedOff() {
+		return fill != null && fill.pending();
+	}
+
+	/* The fetch is finished, whether or not anything was cached */
+	public synchronized void end() {
+		over = true;
+		notifyAll();
+	}
+
+	/* The fill being written, or null if there isn't one yet */
+	public synchronized CacheFill fill() {
+		return fill;
+	}
+
+	/*
+	 * Waits up to timeout ms for the fetch to start a fill. Returns null if it
+	 * ended without one.
+	 */
+	public synchronized CacheFill await(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (fill == null && !over) {
+			long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+				break;
+			}
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return fill;
+	}
+
+}
@@ -0,0 +1,317 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * Makes the cache index durable so a restarted cache keeps the files it
+ * wrote. Every change is appended to index.log, and the log is compacted
+ * into index.snap from time to time. Compaction rotates the log to
+ * index.log.old, writes the snapshot, then deletes the old log, so a crash
+ * at any point leaves snapshot + old log + log describing the index.
+ *
+ * P url fileName contentType size storedAt expires staleWindow etag lastModified
+ *   encoding identitySize
+ * D url
+ * R key
+ *
+ * Records written before freshness or encodings were kept end after storedAt
+ * or lastModified. R removes the url with that key, in hex, as the disk store
+ * evicts by key; compaction reads the urls it keeps back from the files. D
+ * records are no longer written, and are only read so older logs replay.
+ *
+ */
+public class IndexLog {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/* fields of metadata */
+	private static final int METADATA = 10;
+
+	private final File snapshot;
+	private final File log;
+	private final File oldLog;
+
+	// guarded by this
+	private Writer out;
+	private FileOutputStream file;
+	private int records;
+
+	public IndexLog(File root) {
+		this.snapshot = new File(root, "index.snap");
+		this.log = new File(root, "index.log");
+		this.oldLog = new File(root, "index.log.old");
+	}
+
+	/*
+	 * Reads the snapshot and logs, returning url : metadata in the order the
+	 * urls were last used, least recent first.
+	 */
+	public synchronized LinkedHashMap<String, String[]> load() throws IOException {
+		LinkedHashMap<String, String[]> index = new LinkedHashMap<String, String[]>();
+		HashMap<Long, String> urls = new HashMap<Long, String>();
+		if (snapshot.exists()) {
+			loadSnapshot(index, urls);
+		}
+		replay(oldLog, index, urls);
+		replay(log, index, urls);
+		return index;
+	}
+
+	/* Snapshot lines are read straight from a memory mapped file */
+	private void loadSnapshot(Map<String, String[]> index, Map<Long, String> urls) throws IOException {
+		FileInputStream in = new FileInputStream(snapshot);
+		try {
+			FileChannel channel = in.getChannel();
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			byte[] line = new byte[4096];
+			int length = 0;
+			while (map.hasRemaining()) {
+				byte b = map.get();
+				if (b != '\n') {
+					if (length == line.length) {
+						line = Arrays.copyOf(line, length * 2);
+					}
+					line[length++] = b;
+					continue;
+				}
+				apply(new String(line, 0, length, UTF8), index, urls);
+				length = 0;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void replay(File file, Map<String, String[]> index, Map<Long, String> urls) throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				apply(line, index, urls);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void apply(String line, Map<String, String[]> index, Map<Long, String> urls) {
+		String[] fields = line.split("\t", -1);
+		if (fields[0].equals("P") && (fields.length == 6 || fields.length == 10 || fields.length == 2 + METADATA)) {
+			// a re-put moves the url to the most recent end
+			index.remove(fields[1]);
+			String[] metadata = new String[METADATA];
+			for (int i = 2; i < fields.length; i++) {
+				metadata[i - 2] = fields[i].isEmpty() ? null : fields[i];
+			}
+			index.put(fields[1], metadata);
+			urls.put(DiskStore.key(fields[1]), fields[1]);
+		} else if (fields[0].equals("D") && fields.length == 2) {
+			index.remove(fields[1]);
+		} else if (fields[0].equals("R") && fields.length == 2) {
+			try {
+				String url = urls.remove(Long.parseUnsignedLong(fields[1], 16));
+				if (url != null) {
+					index.remove(url);
+				}
+			} catch (NumberFormatException e) {}
+		}
+		// anything else is a torn last line
+	}
+
+	public synchronized void put(String url, String[] metadata) {
+		if (!writable(url)) {
+			return;
+		}
+		append(record(url, metadata));
+	}
+
+	private static String record(String url, String[] metadata) {
+		StringBuilder record = new StringBuilder("P\t").append(url);
+		for (int i = 0; i < METADATA; i++) {
+			String field = i < metadata.length ? metadata[i] : null;
+			// fields come from response headers, which have no tabs or newlines
+			record.append('\t').append(field == null ? "" : field.replace('\t', ' '));
+		}
+		return record.append('\n').toString();
+	}
+
+	/* Removes the url with this key */
+	public synchronized void remove(long key) {
+		append("R\t" + String.format("%016x", key) + "\n");
+	}
+
+	public synchronized int records() {
+		return records;
+	}
+
+	/*
+	 * First half of a compaction, called with the index locked: the current
+	 * log becomes the old log and a new one is started.
+	 */
+	public synchronized void rotate() throws IOException {
+		close();
+		records = 0;
+		if (!log.exists()) {
+			return;
+		}
+		if (oldLog.exists()) {
+			// an earlier compaction never finished, keep its records too
+			Files.write(oldLog.toPath(), Files.readAllBytes(log.toPath()), StandardOpenOption.APPEND);
+			log.delete();
+		} else {
+			Files.move(log.toPath(), oldLog.toPath());
+		}
+	}
+
+	/*
+	 * Second half of a compaction, writing the urls with these keys, least
+	 * recent first, as the index now holds them. The index may not keep the
+	 * urls, so each is read back from its last P record in the snapshot or
+	 * old log, which the keys were taken with. Returns the urls written.
+	 */
+	public int writeSnapshot(long[] order, CacheIndex index) throws IOException {
+		ByteBuffer[] files = new ByteBuffer[] { map(snapshot), map(oldLog) };
+		// key : offset of its last P record * 2 + which file
+		CompactLru records = new CompactLru();
+		for (int i = 0; i < files.length; i++) {
+			ByteBuffer map = files[i];
+			for (int start = 0; start < map.limit(); ) {
+				int end = lineEnd(map, start);
+				String url = urlAt(map, start, end);
+				if (url != null) {
+					records.put(DiskStore.key(url), start * 2L + i);
+				}
+				start = end + 1;
+			}
+		}
+
+		int written = 0;
+		File temp = new File(snapshot.getPath() + ".tmp");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), UTF8));
+		try {
+			for (long key: order) {
+				long record = records.get(key);
+				if (record < 0) {
+					continue;
+				}
+				ByteBuffer map = files[(int) (record % 2)];
+				int start = (int) (record / 2);
+				String url = urlAt(map, start, lineEnd(map, start));
+				String[] metadata = index.get(url);
+				if (metadata != null) {
+					writer.write(record(url, metadata));
+					written++;
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		Files.move(temp.toPath(), snapshot.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		oldLog.delete();
+		return written;
+	}
+
+	/* Maps a whole file to read, empty if there is none */
+	private static ByteBuffer map(File file) throws IOException {
+		if (!file.exists()) {
+			return ByteBuffer.allocate(0);
+		}
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			in.close();
+		}
+	}
+
+	/* Position of the newline ending the line at start, or the limit */
+	private static int lineEnd(ByteBuffer map, int start) {
+		int end = start;
+		while (end < map.limit() && map.get(end) != '\n') {
+			end++;
+		}
+		return end;
+	}
+
+	/* The url of a whole P record, or null for any other line */
+	private static String urlAt(ByteBuffer map, int start, int end) {
+		if (end == map.limit() || end - start < 3 || map.get(start) != 'P' || map.get(start + 1) != '\t') {
+			return null;
+		}
+		int tab = start + 2;
+		while (tab < end && map.get(tab) != '\t') {
+			tab++;
+		}
+		byte[] url = new byte[tab - start - 2];
+		for (int i = 0; i < url.length; i++) {
+			url[i] = map.get(start + 2 + i);
+		}
+		return new String(url, UTF8);
+	}
+
+	/* Forces what has been logged to disk */
+	public synchronized void sync() {
+		if (file == null) {
+			return;
+		}
+		try {
+			file.getFD().sync();
+		} catch (IOException e) {
+			System.err.println("Unable to sync cache index: " + e.getMessage());
+		}
+	}
+
+	private void append(String record) {
+		try {
+			if (out == null) {
+				file = new FileOutputStream(log, true);
+				out = new BufferedWriter(new OutputStreamWriter(file, UTF8));
+			}
+			out.write(record);
+			out.flush();
+			records++;
+		} catch (IOException e) {
+			System.err.println("Unable to write cache index: " + e.getMessage());
+		}
+	}
+
+	private void close() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {}
+			out = null;
+			file = null;
+		}
+	}
+
+	/* urls with tabs or line breaks can't be logged and aren't kept */
+	private static boolean writable(String url) {
+		return url.indexOf('\t') == -1 && url.indexOf('\n') == -1 && url.indexOf('\r') == -1;
+	}
+
+}
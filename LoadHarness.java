@@ -0,0 +1,254 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * An end to end load test in one JVM: java -cp . LoadHarness
+ *
+ * Starts load.nodes caches on loopback ports from load.basePort, each with its
+ * own temporary cache directory, finding each other over multicast as they
+ * would on separate machines, in front of a StubOrigin. load.clients
+ * threads then keep a connection each to one of the caches and ask for
+ * load.requests urls drawn from load.urls objects of load.size bytes, ranked
+ * by a Zipf distribution with exponent load.zipf. The first load.warmup
+ * requests are not counted. Reports throughput, client latency percentiles,
+ * and how the caches answered.
+ *
+ */
+public class LoadHarness {
+
+	private static final int NODES = Integer.getInteger("load.nodes", 3);
+	private static final int BASE_PORT = Integer.getInteger("load.basePort", 19991);
+	private static final int CLIENTS = Integer.getInteger("load.clients", 32);
+	private static final long REQUESTS = Long.getLong("load.requests", 200000);
+	private static final long WARMUP = Long.getLong("load.warmup", 20000);
+	private static final int URLS = Integer.getInteger("load.urls", 10000);
+	private static final int SIZE = Integer.getInteger("load.size", 4096);
+	private static final double ZIPF = Double.parseDouble(System.getProperty("load.zipf", "0.99"));
+	/* the caches log every request unless this is false */
+	private static final boolean QUIET = !"false".equals(System.getProperty("load.quiet"));
+
+	public static void main(String[] args) throws Exception {
+		PrintStream report = System.out;
+		if (QUIET) {
+			System.setOut(new PrintStream(HttpStreams.DISCARD));
+		}
+
+		StubOrigin origin = new StubOrigin();
+		origin.start();
+		List<ServiceDiscovery> nodes = new ArrayList<ServiceDiscovery>();
+		List<File> dirs = new ArrayList<File>();
+		for (int i = 0; i < NODES; i++) {
+			File dir = Files.createTempDirectory("dcache-load").toFile();
+			dirs.add(dir);
+			ServiceDiscovery sd = new ServiceDiscovery(BASE_PORT + i, dir);
+			nodes.add(sd);
+		}
+		for (final ServiceDiscovery sd: nodes) {
+			sd.announce();
+			sd.digests.start();
+			sd.replicator.start();
+			new ProxyCacheThread(sd.cachePort, sd).start();
+			Thread listener = new Thread("Listener " + sd.cachePort) {
+				public void run() {
+					sd.listen();
+				}
+			};
+			listener.setDaemon(true);
+			listener.start();
+		}
+		// wait for the caches to find each other
+		long deadline = System.currentTimeMillis() + 10000;
+		for (ServiceDiscovery sd: nodes) {
+			while (sd.membership.caches().size() < NODES && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+		}
+
+		final String[] urls = new String[URLS];
+		for (int i = 0; i < URLS; i++) {
+			urls[i] = origin.url(i, SIZE);
+		}
+		final Zipf zipf = new Zipf(URLS, ZIPF);
+		report.println("> LOAD: " + NODES + " caches, " + CLIENTS + " clients, " + REQUESTS +
+				" requests over " + URLS + " urls of " + SIZE + " bytes, zipf " + ZIPF);
+
+		if (WARMUP > 0) {
+			run(nodes, urls, zipf, WARMUP, new Histogram(), new LongAdder(), new LongAdder());
+		}
+		long[] before = answered(nodes);
+		long originBefore = origin.requests.sum();
+
+		Histogram latency = new Histogram();
+		LongAdder bytes = new LongAdder();
+		LongAdder errors = new LongAdder();
+		long start = System.nanoTime();
+		run(nodes, urls, zipf, REQUESTS, latency, bytes, errors);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		long[] after = answered(nodes);
+		String[] tiers = {"memory", "disk", "coalesced", "peer", "origin"};
+		long total = 0;
+		for (int i = 0; i < tiers.length; i++) {
+			total += after[i] - before[i];
+		}
+		report.println(String.format("throughput %.0f req/s, %.1f MB/s, %d errors",
+				latency.count() / seconds, bytes.sum() / seconds / (1 << 20), errors.sum()));
+		report.println(String.format("latency    p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms",
+				latency.percentile(0.5) / 1e6, latency.percentile(0.99) / 1e6,
+				latency.percentile(0.999) / 1e6, latency.max() / 1e6));
+		StringBuilder answeredBy = new StringBuilder("answered  ");
+		for (int i = 0; i < tiers.length; i++) {
+			answeredBy.append(String.format(" %s %.1f%%", tiers[i],
+					total == 0 ? 0 : 100.0 * (after[i] - before[i]) / total));
+		}
+		report.println(answeredBy);
+		report.println(String.format("hit ratio  %.1f%%, %d requests reached the origin",
+				total == 0 ? 0 : 100.0 * (total - (after[4] - before[4])) / total,
+				origin.requests.sum() - originBefore));
+
+		origin.close();
+		for (ServiceDiscovery sd: nodes) {
+			sd.leave();
+		}
+		for (File dir: dirs) {
+			delete(dir);
+		}
+		System.exit(0);
+	}
+
+	/* Has the clients make count requests between them */
+	private static void run(final List<ServiceDiscovery> nodes, final String[] urls, final Zipf zipf,
+			long count, final Histogram latency, final LongAdder bytes, final LongAdder errors)
+			throws InterruptedException {
+		final AtomicLong remaining = new AtomicLong(count);
+		List<Thread> clients = new ArrayList<Thread>();
+		for (int i = 0; i < CLIENTS; i++) {
+			final int port = nodes.get(i % nodes.size()).cachePort;
+			Thread client = new Thread("LoadClient " + i) {
+				public void run() {
+					Socket socket = null;
+					InputStream in = null;
+					OutputStream out = null;
+					while (remaining.getAndDecrement() > 0) {
+						String url = urls[zipf.next()];
+						long start = System.nanoTime();
+						try {
+							if (socket == null) {
+								socket = new Socket("127.0.0.1", port);
+								socket.setTcpNoDelay(true);
+								in = new BufferedInputStream(socket.getInputStream(), HttpStreams.BUFFER_SIZE);
+								out = new BufferedOutputStream(socket.getOutputStream());
+							}
+							out.write(("GET /" + url + " HTTP/1.1\r\nHost: 127.0.0.1:" + port + "\r\n\r\n")
+									.getBytes(HttpStreams.ASCII));
+							out.flush();
+							List<String> header = HttpStreams.readHeader(in);
+							if (header == null) {
+								throw new IOException("Connection closed");
+							}
+							bytes.add(HttpStreams.copy(HttpStreams.body(header, in), HttpStreams.DISCARD,
+									null, -1));
+							if (HttpStreams.statusCode(header) != 200) {
+								errors.increment();
+							}
+							latency.since(start);
+							if (!HttpStreams.framed(header) || !HttpStreams.keepAlive(header)) {
+								socket.close();
+								socket = null;
+							}
+						} catch (IOException e) {
+							errors.increment();
+							if (socket != null) {
+								try {
+									socket.close();
+								} catch (IOException closed) {}
+								socket = null;
+							}
+						}
+					}
+					if (socket != null) {
+						try {
+							socket.close();
+						} catch (IOException e) {}
+					}
+				}
+			};
+			clients.add(client);
+			client.start();
+		}
+		for (Thread client: clients) {
+			client.join();
+		}
+	}
+
+	/* Requests answered by each tier, summed over the caches */
+	private static long[] answered(List<ServiceDiscovery> nodes) {
+		long[] counts = new long[5];
+		for (ServiceDiscovery sd: nodes) {
+			counts[0] += sd.metrics.memory.latency.count();
+			counts[1] += sd.metrics.disk.latency.count();
+			counts[2] += sd.metrics.coalesced.latency.count();
+			counts[3] += sd.metrics.peer.latency.count();
+			counts[4] += sd.metrics.origin.latency.count();
+		}
+		return counts;
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child: children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/* Ranks 0..n-1 drawn with probability proportional to 1 / (rank + 1)^s */
+	private static class Zipf {
+		private final double[] cumulative;
+
+		Zipf(int n, double s) {
+			cumulative = new double[n];
+			double sum = 0;
+			for (int i = 0; i < n; i++) {
+				sum += 1 / Math.pow(i + 1, s);
+				cumulative[i] = sum;
+			}
+			for (int i = 0; i < n; i++) {
+				cumulative[i] /= sum;
+			}
+		}
+
+		int next() {
+			double u = ThreadLocalRandom.current().nextDouble();
+			int low = 0;
+			int high = cumulative.length - 1;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (cumulative[mid] < u) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * The cache index as a map from each url to its metadata array, and from
+ * each url's key to the url.
+ *
+ */
+public class MapCacheIndex implements CacheIndex {
+
+	private final ConcurrentHashMap<String, String[]> entries = new ConcurrentHashMap<String, String[]>();
+	private final ConcurrentHashMap<Long, String> urls = new ConcurrentHashMap<Long, String>();
+
+	public String[] get(String url) {
+		return entries.get(url);
+	}
+
+	public void put(String url, String[] metadata) {
+		urls.put(DiskStore.key(url), url);
+		entries.put(url, metadata);
+	}
+
+	public String[] remove(String url) {
+		urls.remove(DiskStore.key(url), url);
+		return entries.remove(url);
+	}
+
+	public String[] removeKey(long key) {
+		String url = urls.remove(key);
+		return url == null ? null : entries.remove(url);
+	}
+
+	public boolean containsKey(String url) {
+		return entries.containsKey(url);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long[] hashes() {
+		long[] hashes = new long[entries.size()];
+		int n = 0;
+		for (String url: entries.keySet()) {
+			if (n == hashes.length) {
+				// added while we were copying
+				break;
+			}
+			hashes[n++] = CacheDigest.hash(url);
+		}
+		return n == hashes.length ? hashes : Arrays.copyOf(hashes, n);
+	}
+
+}
@@ -0,0 +1,172 @@
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * The caches this one knows to be up, itself included. Every cache multicasts
+ * a heartbeat each dcache.heartbeat ms, and a phi accrual failure detector
+ * judges from the gaps between a peer's heartbeats how likely it is to be
+ * gone: phi is -log10 of the chance that a live peer would have been silent
+ * this long. A peer is no longer asked for urls once phi passes half of
+ * dcache.phiThreshold, or once a connection to it fails, until it is heard
+ * from again, and is dropped along with its digest and link at the full
+ * threshold. A cache that shuts down says it is LEAVING and is dropped at once.
+ *
+ * The set of live caches is rebuilt whenever it changes and read without
+ * locking, so a miss never waits on the thread that hears heartbeats.
+ *
+ */
+public class Membership {
+
+	/* What we know of one peer */
+	private static class Member {
+		volatile long lastHeard;
+		/* mean ms between heartbeats, a moving average */
+		volatile double interval;
+		/* a connection failed since we last heard from it */
+		volatile boolean failed;
+
+		Member(long now) {
+			lastHeard = now;
+			interval = CacheConfig.HEARTBEAT;
+		}
+	}
+
+	private final ServiceDiscovery sd;
+	private final ConcurrentHashMap<String, Member> members = new ConcurrentHashMap<String, Member>();
+	private volatile Set<String> caches;
+
+	public Membership(ServiceDiscovery sd) {
+		this.sd = sd;
+		publish();
+	}
+
+	/* Caches to ask for urls, this one included; the set never changes */
+	public Set<String> caches() {
+		return caches;
+	}
+
+	/* Every peer heard from and not yet dropped, suspected or not */
+	public Set<String> known() {
+		return Collections.unmodifiableSet(members.keySet());
+	}
+
+	/* Records a heartbeat or announcement. True if the peer is new. */
+	public boolean heard(String cacheAddr) {
+		if (cacheAddr.equals(sd.cacheAddress)) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		Member member = members.get(cacheAddr);
+		if (member == null) {
+			Member joined = new Member(now);
+			member = members.putIfAbsent(cacheAddr, joined);
+			if (member == null) {
+				publish();
+				return true;
+			}
+		}
+		// announcements come on top of heartbeats, never count a gap below half
+		long gap = Math.max(now - member.lastHeard, CacheConfig.HEARTBEAT / 2);
+		member.interval = member.interval * 0.9 + gap * 0.1;
+		member.lastHeard = now;
+		if (member.failed || !caches.contains(cacheAddr)) {
+			member.failed = false;
+			publish();
+		}
+		return false;
+	}
+
+	/* The peer is shutting down */
+	public void leaving(String cacheAddr) {
+		if (members.remove(cacheAddr) != null) {
+			System.out.println("\t> LEAVING: " + cacheAddr);
+			forget(cacheAddr);
+		}
+	}
+
+	/* A connection to the peer failed; stop asking it until it is heard from */
+	public void failed(String cacheAddr) {
+		Member member = members.get(cacheAddr);
+		if (member != null && !member.failed) {
+			member.failed = true;
+			System.out.println("\t> SUSPECT: " + cacheAddr);
+			publish();
+		}
+	}
+
+	/* How sure we are that the peer is gone; 0 for ourselves and unknowns */
+	public double phi(String cacheAddr) {
+		Member member = members.get(cacheAddr);
+		if (member == null) {
+			return 0;
+		}
+		return phi(member, System.currentTimeMillis());
+	}
+
+	/* Suspects silent peers and drops dead ones, on every heartbeat */
+	public void check() {
+		long now = System.currentTimeMillis();
+		boolean changed = false;
+		for (String cacheAddr: members.keySet()) {
+			Member member = members.get(cacheAddr);
+			if (member == null) {
+				continue;
+			}
+			double phi = phi(member, now);
+			if (phi >= CacheConfig.PHI_THRESHOLD) {
+				if (members.remove(cacheAddr, member)) {
+					System.out.println("\t> DEAD: " + cacheAddr + " (phi " + (int) phi + ")");
+					forget(cacheAddr);
+				}
+			} else if (caches.contains(cacheAddr) != live(member, now)) {
+				changed = true;
+			}
+		}
+		if (changed) {
+			publish();
+		}
+	}
+
+	/*
+	 * Heartbeat gaps taken as exponentially distributed around their mean, so
+	 * the chance of a silence of t ms is e^(-t / mean).
+	 */
+	private static double phi(Member member, long now) {
+		return (now - member.lastHeard) / member.interval * Math.log10(Math.E);
+	}
+
+	private static boolean live(Member member, long now) {
+		return !member.failed && phi(member, now) < CacheConfig.PHI_THRESHOLD / 2;
+	}
+
+	/* Drops what we hold for a peer that is gone */
+	private void forget(String cacheAddr) {
+		publish();
+		sd.digests.forget(cacheAddr);
+		PeerLink link = sd.peerLinks.remove(cacheAddr);
+		if (link != null) {
+			link.close();
+		}
+		System.out.println("\t> CACHES: " + caches);
+	}
+
+	/* Rebuilds the set of live caches */
+	private synchronized void publish() {
+		long now = System.currentTimeMillis();
+		Set<String> live = new HashSet<String>();
+		live.add(sd.cacheAddress);
+		for (Map.Entry<String, Member> member: members.entrySet()) {
+			if (live(member.getValue(), now)) {
+				live.add(member.getKey());
+			}
+		}
+		caches = Collections.unmodifiableSet(live);
+	}
+
+}
@@ -0,0 +1,110 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * An in-memory tier in front of the cache files, holding the response
+ * header and body of popular objects within a byte budget. It is a
+ * segmented LRU: an object read from disk is admitted to the probation
+ * segment, a second hit promotes it to the protected segment, objects
+ * falling out of protected are demoted back to probation, and objects
+ * falling out of probation are left on disk only.
+ *
+ */
+public class MemoryTier {
+
+	public static class Entry {
+		public final byte[] header;
+		public final byte[] body;
+
+		public Entry(byte[] header, byte[] body) {
+			this.header = header;
+			this.body = body;
+		}
+
+		long size() {
+			return header.length + body.length;
+		}
+	}
+
+	public final long budget;
+	public final long maxObject;
+	private final long protectedBudget;
+
+	// guarded by this, both in access order
+	private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long probationBytes;
+	private long protectedBytes;
+
+	public MemoryTier(long budget, long maxObject) {
+		this.budget = budget;
+		this.maxObject = Math.min(maxObject, budget);
+		this.protectedBudget = budget * 4 / 5;
+	}
+
+	public synchronized long usedBytes() {
+		return probationBytes + protectedBytes;
+	}
+
+	/* Returns the object if held in memory, promoting it on a second hit */
+	public synchronized Entry get(String url) {
+		Entry entry = protectedSegment.get(url);
+		if (entry != null) {
+			return entry;
+		}
+		entry = probation.remove(url);
+		if (entry != null) {
+			probationBytes -= entry.size();
+			protectedSegment.put(url, entry);
+			protectedBytes += entry.size();
+			evict();
+		}
+		return entry;
+	}
+
+	/* Admits an object just read from disk into probation */
+	public synchronized void admit(String url, Entry entry) {
+		if (entry.size() > maxObject) {
+			return;
+		}
+		invalidate(url);
+		probation.put(url, entry);
+		probationBytes += entry.size();
+		evict();
+	}
+
+	public synchronized void invalidate(String url) {
+		Entry old = probation.remove(url);
+		if (old != null) {
+			probationBytes -= old.size();
+		}
+		old = protectedSegment.remove(url);
+		if (old != null) {
+			protectedBytes -= old.size();
+		}
+	}
+
+	private void evict() {
+		// demote the least recently used protected objects
+		Iterator<Map.Entry<String, Entry>> eldest = protectedSegment.entrySet().iterator();
+		while (protectedBytes > protectedBudget && eldest.hasNext()) {
+			Map.Entry<String, Entry> demoted = eldest.next();
+			eldest.remove();
+			protectedBytes -= demoted.getValue().size();
+			probation.put(demoted.getKey(), demoted.getValue());
+			probationBytes += demoted.getValue().size();
+		}
+		// and drop the least recently used probation objects
+		eldest = probation.entrySet().iterator();
+		while (probationBytes + protectedBytes > budget && eldest.hasNext()) {
+			Map.Entry<String, Entry> dropped = eldest.next();
+			eldest.remove();
+			probationBytes -= dropped.getValue().size();
+		}
+	}
+
+}
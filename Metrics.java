@@ -0,0 +1,300 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * Counters and latency histograms for the cache, served on the proxy port at
+ * /__stats as JSON, or as Prometheus text at /__stats?format=prometheus.
+ * Every request is answered by one tier: memory, disk, a coalesced fill, a
+ * peer, or the web server. Peers are also tracked one by one.
+ *
+ */
+public class Metrics {
+
+	public static final String PATH = "/__stats";
+
+	/* Requests answered by one tier */
+	public static class Tier {
+		public final Histogram latency = new Histogram();
+		public final LongAdder bytes = new LongAdder();
+
+		public void record(long start, long sent) {
+			latency.since(start);
+			if (sent > 0) {
+				bytes.add(sent);
+			}
+		}
+	}
+
+	/* What we've seen of one peer */
+	public static class Peer {
+		public final Histogram latency = new Histogram();
+		public final LongAdder hits = new LongAdder();
+		public final LongAdder misses = new LongAdder();
+		public final LongAdder errors = new LongAdder();
+	}
+
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	public final Tier memory = new Tier();
+	public final Tier disk = new Tier();
+	public final Tier coalesced = new Tier();
+	public final Tier peer = new Tier();
+	public final Tier origin = new Tier();
+
+	public final LongAdder requests = new LongAdder();
+	public final LongAdder failures = new LongAdder();
+	public final LongAdder revalidations = new LongAdder();
+	public final LongAdder notModified = new LongAdder();
+	public final LongAdder peerServed = new LongAdder();
+	public final LongAdder peerServedBytes = new LongAdder();
+	/* peer answers cut short because the offered body was held here */
+	public final LongAdder offersTaken = new LongAdder();
+	public final LongAdder offeredBytesSkipped = new LongAdder();
+	public final AtomicInteger connections = new AtomicInteger();
+	public final AtomicInteger peerSessions = new AtomicInteger();
+
+	private final Map<String, Tier> tiers = new LinkedHashMap<String, Tier>();
+	private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<String, Peer>();
+	private final long started = System.currentTimeMillis();
+
+	public Metrics() {
+		tiers.put("memory", memory);
+		tiers.put("disk", disk);
+		tiers.put("coalesced", coalesced);
+		tiers.put("peer", peer);
+		tiers.put("origin", origin);
+	}
+
+	public Peer peer(String cacheAddr) {
+		Peer stats = peers.get(cacheAddr);
+		if (stats == null) {
+			Peer created = new Peer();
+			stats = peers.putIfAbsent(cacheAddr, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	private long answered() {
+		long answered = 0;
+		for (Tier tier: tiers.values()) {
+			answered += tier.latency.count();
+		}
+		return answered;
+	}
+
+	public String json(ServiceDiscovery sd) {
+		StringBuilder json = new StringBuilder("{\n");
+		json.append("  \"uptimeSeconds\": ").append((System.currentTimeMillis() - started) / 1000).append(",\n");
+		json.append("  \"requests\": ").append(requests.sum()).append(",\n");
+		json.append("  \"failures\": ").append(failures.sum()).append(",\n");
+		json.append("  \"revalidations\": ").append(revalidations.sum()).append(",\n");
+		json.append("  \"notModified\": ").append(notModified.sum()).append(",\n");
+		json.append("  \"connections\": {\"active\": ").append(connections.get())
+				.append(", \"peerSessions\": ").append(peerSessions.get()).append("},\n");
+
+		long answered = answered();
+		json.append("  \"tiers\": {");
+		String separator = "\n";
+		for (Map.Entry<String, Tier> tier: tiers.entrySet()) {
+			Histogram latency = tier.getValue().latency;
+			json.append(separator).append("    ").append(quote(tier.getKey())).append(": {\"count\": ")
+					.append(latency.count()).append(", \"ratio\": ")
+					.append(answered == 0 ? 0 : (double) latency.count() / answered)
+					.append(", \"bytes\": ").append(tier.getValue().bytes.sum())
+					.append(", \"latencyNs\": ").append(json(latency)).append("}");
+			separator = ",\n";
+		}
+		json.append("\n  },\n");
+
+		json.append("  \"peersServed\": {\"count\": ").append(peerServed.sum())
+				.append(", \"bytes\": ").append(peerServedBytes.sum()).append("},\n");
+		json.append("  \"offersTaken\": {\"count\": ").append(offersTaken.sum())
+				.append(", \"bytesSkipped\": ").append(offeredBytesSkipped.sum()).append("},\n");
+		json.append("  \"replication\": {\"announced\": ").append(sd.replicator.announced.sum())
+				.append(", \"pulled\": ").append(sd.replicator.pulled.sum()).append("},\n");
+
+		json.append("  \"peers\": {");
+		separator = "\n";
+		for (String cacheAddr: peerAddresses(sd)) {
+			Peer stats = peer(cacheAddr);
+			PeerLink link = sd.peerLinks.get(cacheAddr);
+			json.append(separator).append("    ").append(quote(cacheAddr)).append(": {\"live\": ")
+					.append(sd.membership.caches().contains(cacheAddr)).append(", \"phi\": ")
+					.append(Math.round(sd.membership.phi(cacheAddr) * 100) / 100.0).append(", \"linked\": ")
+					.append(link != null && link.isOpen()).append(", \"digest\": ")
+					.append(sd.digests.hasDigest(cacheAddr)).append(", \"breakerOpen\": ")
+					.append(sd.health.open(cacheAddr)).append(", \"expectedNs\": ")
+					.append(Math.round(sd.health.score(cacheAddr).expected())).append(", \"hits\": ").append(stats.hits.sum())
+					.append(", \"misses\": ").append(stats.misses.sum()).append(", \"errors\": ")
+					.append(stats.errors.sum()).append(", \"latencyNs\": ").append(json(stats.latency))
+					.append("}");
+			separator = ",\n";
+		}
+		json.append("\n  },\n");
+
+		json.append("  \"discovery\": {\"self\": ").append(quote(sd.cacheAddress)).append(", \"caches\": [");
+		separator = "";
+		for (String cacheAddr: sorted(sd.membership.caches())) {
+			json.append(separator).append(quote(cacheAddr));
+			separator = ", ";
+		}
+		json.append("]},\n");
+
+		json.append("  \"store\": {\"diskObjects\": ").append(sd.disk.objects())
+				.append(", \"diskBodies\": ").append(sd.disk.bodies())
+				.append(", \"diskBytes\": ").append(sd.disk.usedBytes())
+				.append(", \"fillsDeduplicated\": ").append(sd.disk.deduplicated.sum())
+				.append(", \"bytesDeduplicated\": ").append(sd.disk.deduplicatedBytes.sum())
+				.append(", \"memoryBytes\": ").append(sd.memory.usedBytes())
+				.append(", \"inFlight\": ").append(sd.inFlight.size())
+				.append(", \"writeQueueBytes\": ").append(sd.writes.queuedBytes())
+				.append(", \"fillsWritten\": ").append(sd.writes.committed.sum())
+				.append(", \"fillsDropped\": ").append(sd.writes.dropped.sum())
+				.append(", \"negativeEntries\": ").append(sd.negative.size())
+				.append(", \"negativeHits\": ").append(sd.negative.hits.sum()).append("}\n");
+		return json.append("}\n").toString();
+	}
+
+	public String prometheus(ServiceDiscovery sd) {
+		StringBuilder text = new StringBuilder();
+		counter(text, "dcache_requests_total", "Client requests", requests.sum());
+		counter(text, "dcache_failures_total", "Requests nothing could be sent for", failures.sum());
+		counter(text, "dcache_revalidations_total", "Stale entries revalidated", revalidations.sum());
+		counter(text, "dcache_not_modified_total", "Revalidations answered 304", notModified.sum());
+		counter(text, "dcache_peer_served_total", "Peer requests served", peerServed.sum());
+		counter(text, "dcache_peer_served_bytes_total", "Bytes sent to peers", peerServedBytes.sum());
+		counter(text, "dcache_offers_taken_total", "Peer answers cut short, their body held here",
+				offersTaken.sum());
+		counter(text, "dcache_offered_bytes_skipped_total", "Bytes of offered bodies not transferred",
+				offeredBytesSkipped.sum());
+		counter(text, "dcache_hot_announced_total", "Hot urls announced to peers",
+				sd.replicator.announced.sum());
+		counter(text, "dcache_hot_pulled_total", "Hot urls pulled from peers", sd.replicator.pulled.sum());
+		gauge(text, "dcache_connections", "Client connections being served", connections.get());
+		gauge(text, "dcache_peer_sessions", "Links from peers", peerSessions.get());
+		gauge(text, "dcache_caches", "Caches discovered, this one included", sd.membership.caches().size());
+		gauge(text, "dcache_disk_objects", "Objects on disk", sd.disk.objects());
+		gauge(text, "dcache_disk_bodies", "Distinct bodies on disk", sd.disk.bodies());
+		gauge(text, "dcache_disk_bytes", "Bytes on disk", sd.disk.usedBytes());
+		counter(text, "dcache_fills_deduplicated_total", "Cache fills whose body was already stored",
+				sd.disk.deduplicated.sum());
+		counter(text, "dcache_bytes_deduplicated_total", "Bytes of cache fills not stored twice",
+				sd.disk.deduplicatedBytes.sum());
+		gauge(text, "dcache_memory_bytes", "Bytes in the memory tier", sd.memory.usedBytes());
+		gauge(text, "dcache_write_queue_bytes", "Bytes of cache fills waiting to be written",
+				sd.writes.queuedBytes());
+		counter(text, "dcache_fills_written_total", "Cache fills published", sd.writes.committed.sum());
+		counter(text, "dcache_fills_dropped_total", "Cache fills dropped with the write queue full",
+				sd.writes.dropped.sum());
+		gauge(text, "dcache_negative_entries", "Failures remembered", sd.negative.size());
+		counter(text, "dcache_negative_hits_total", "Requests answered by a remembered failure",
+				sd.negative.hits.sum());
+
+		text.append("# HELP dcache_tier_bytes_total Bytes sent to clients by tier\n");
+		text.append("# TYPE dcache_tier_bytes_total counter\n");
+		for (Map.Entry<String, Tier> tier: tiers.entrySet()) {
+			text.append("dcache_tier_bytes_total{tier=\"").append(tier.getKey()).append("\"} ")
+					.append(tier.getValue().bytes.sum()).append('\n');
+		}
+		text.append("# HELP dcache_tier_latency_seconds Time to answer a request by tier\n");
+		text.append("# TYPE dcache_tier_latency_seconds summary\n");
+		for (Map.Entry<String, Tier> tier: tiers.entrySet()) {
+			summary(text, "dcache_tier_latency_seconds", "tier=\"" + tier.getKey() + "\"",
+					tier.getValue().latency);
+		}
+
+		List<String> peerAddresses = peerAddresses(sd);
+		text.append("# HELP dcache_peer_requests_total Requests to each peer by outcome\n");
+		text.append("# TYPE dcache_peer_requests_total counter\n");
+		for (String cacheAddr: peerAddresses) {
+			Peer stats = peer(cacheAddr);
+			String label = "peer=\"" + cacheAddr + "\",outcome=";
+			text.append("dcache_peer_requests_total{").append(label).append("\"hit\"} ")
+					.append(stats.hits.sum()).append('\n');
+			text.append("dcache_peer_requests_total{").append(label).append("\"miss\"} ")
+					.append(stats.misses.sum()).append('\n');
+			text.append("dcache_peer_requests_total{").append(label).append("\"error\"} ")
+					.append(stats.errors.sum()).append('\n');
+		}
+		text.append("# HELP dcache_peer_latency_seconds Time to fetch a body from each peer\n");
+		text.append("# TYPE dcache_peer_latency_seconds summary\n");
+		for (String cacheAddr: peerAddresses) {
+			summary(text, "dcache_peer_latency_seconds", "peer=\"" + cacheAddr + "\"", peer(cacheAddr).latency);
+		}
+		return text.toString();
+	}
+
+	/* Discovered peers and any others we have numbers for */
+	private List<String> peerAddresses(ServiceDiscovery sd) {
+		List<String> addresses = new ArrayList<String>(peers.keySet());
+		for (String cacheAddr: sd.membership.known()) {
+			if (!peers.containsKey(cacheAddr)) {
+				addresses.add(cacheAddr);
+			}
+		}
+		Collections.sort(addresses);
+		return addresses;
+	}
+
+	private static List<String> sorted(Iterable<String> values) {
+		List<String> list = new ArrayList<String>();
+		for (String value: values) {
+			list.add(value);
+		}
+		Collections.sort(list);
+		return list;
+	}
+
+	private static String json(Histogram latency) {
+		StringBuilder json = new StringBuilder("{\"count\": ").append(latency.count())
+				.append(", \"mean\": ").append(latency.mean());
+		for (double q: QUANTILES) {
+			json.append(", \"p").append(quantileName(q)).append("\": ").append(latency.percentile(q));
+		}
+		return json.append(", \"max\": ").append(latency.max()).append("}").toString();
+	}
+
+	private static String quantileName(double q) {
+		// 0.5 -> 50, 0.999 -> 999
+		String digits = Double.toString(q).substring(2);
+		return digits.length() == 1 ? digits + "0" : digits;
+	}
+
+	private static void counter(StringBuilder text, String name, String help, long value) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(" counter\n");
+		text.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void gauge(StringBuilder text, String name, String help, long value) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(" gauge\n");
+		text.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void summary(StringBuilder text, String name, String labels, Histogram latency) {
+		for (double q: QUANTILES) {
+			text.append(name).append('{').append(labels).append(",quantile=\"").append(q).append("\"} ")
+					.append(latency.percentile(q) / 1e9).append('\n');
+		}
+		text.append(name).append("_sum{").append(labels).append("} ").append(latency.sum() / 1e9).append('\n');
+		text.append(name).append("_count{").append(labels).append("} ").append(latency.count()).append('\n');
+	}
+
+	private static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+}
@@ -0,0 +1,251 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * Failures remembered for a short time, so a url that is bound to fail is
+ * answered here instead of going to the peers and the web server again.
+ * A host that doesn't resolve or refuses connections fails every url on it
+ * and is remembered by host; a 404 or 410, or a 500, 502, 503 or 504, is
+ * remembered by url with its response, which is replayed. Each class of
+ * failure has its own lifetime, and a response's own max-age shortens it.
+ *
+ * Failures seen here are shared with the peers, which remember them for
+ * the time left. At most dcache.negativeEntries are kept, the least
+ * recently used going first.
+ *
+ */
+public class NegativeCache {
+
+	// failure classes
+	public static final byte DNS = 0;
+	public static final byte CONNECT = 1;
+	public static final byte NOT_FOUND = 2;
+	public static final byte SERVER_ERROR = 3;
+
+	/* largest response body remembered */
+	private static final int MAX_BODY = 4096;
+	private static final String HOST = "host ";
+
+	/* A remembered failure */
+	public static class Entry {
+		public final byte kind;
+		public final long expires;
+		/* response to replay, null for a host */
+		final List<String> header;
+		final byte[] body;
+
+		Entry(byte kind, long expires, List<String> header, byte[] body) {
+			this.kind = kind;
+			this.expires = expires;
+			this.header = header;
+			this.body = body;
+		}
+
+		/* Sends the remembered response; false for a host, which has none */
+		public boolean replay(OutputStream out) throws IOException {
+			if (header == null) {
+				return false;
+			}
+			OutputStream client = HttpStreams.beginBody(out, header);
+			client.write(body);
+			HttpStreams.endBody(client);
+			return true;
+		}
+	}
+
+	/* Output that keeps a copy of a body small enough to remember */
+	public static class Capture extends OutputStream {
+		private final OutputStream out;
+		private ByteArrayOutputStream kept = new ByteArrayOutputStream();
+
+		public Capture(OutputStream out) {
+			this.out = out;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		public void write(byte[] buf, int off, int len) throws IOException {
+			out.write(buf, off, len);
+			if (kept != null && kept.size() + len <= MAX_BODY) {
+				kept.write(buf, off, len);
+			} else {
+				kept = null;
+			}
+		}
+
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		/* The body written, or null if it was too large */
+		public byte[] body() {
+			return kept == null ? null : kept.toByteArray();
+		}
+	}
+
+	public final LongAdder hits = new LongAdder();
+
+	private final int maxEntries;
+	// guarded by this, in access order
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	public NegativeCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/* The failure remembered for url or its host, or null */
+	public synchronized Entry get(String url, String host) {
+		long now = System.currentTimeMillis();
+		Entry entry = live(url, now);
+		if (entry == null && host != null) {
+			entry = live(HOST + host, now);
+		}
+		if (entry != null) {
+			hits.increment();
+		}
+		return entry;
+	}
+
+	/* Remembers a host that failed to resolve or connect, returning the entry to share */
+	public byte[] hostFailed(String host, byte kind) {
+		long ttl = kind == DNS ? CacheConfig.NEGATIVE_DNS_TTL : CacheConfig.NEGATIVE_CONNECT_TTL;
+		if (ttl <= 0) {
+			return null;
+		}
+		Entry entry = new Entry(kind, System.currentTimeMillis() + ttl, null, null);
+		put(HOST + host, entry);
+		return encode(HOST + host, entry);
+	}
+
+	/*
+	 * Remembers an error response for url if its status is one that is and
+	 * its body, null if it was too large to keep, is small. Returns the entry
+	 * to share, or null.
+	 */
+	public byte[] answered(String url, List<String> header, byte[] body) {
+		int status = HttpStreams.statusCode(header);
+		byte kind;
+		long ttl;
+		if (status == 404 || status == 410) {
+			kind = NOT_FOUND;
+			ttl = CacheConfig.NEGATIVE_404_TTL;
+		} else if (status == 500 || (status >= 502 && status <= 504)) {
+			kind = SERVER_ERROR;
+			ttl = CacheConfig.NEGATIVE_5XX_TTL;
+		} else {
+			return null;
+		}
+		long maxAge = Freshness.maxAge(header);
+		if (maxAge >= 0) {
+			ttl = Math.min(ttl, maxAge);
+		}
+		if (ttl <= 0 || body == null || !Freshness.storable(header)) {
+			return null;
+		}
+		List<String> replayed = new ArrayList<String>();
+		for (String line: header) {
+			if (!line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+				replayed.add(line);
+			}
+		}
+		replayed.add("Content-Length: " + body.length);
+		Entry entry = new Entry(kind, System.currentTimeMillis() + ttl, replayed, body);
+		put(url, entry);
+		return encode(url, entry);
+	}
+
+	/* Takes in a failure a peer shared */
+	public void learn(byte[] shared) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(shared));
+		try {
+			String key = PeerLink.readString(in);
+			byte kind = in.readByte();
+			long ttl = Math.min(in.readLong(), kind == DNS ? CacheConfig.NEGATIVE_DNS_TTL :
+					kind == CONNECT ? CacheConfig.NEGATIVE_CONNECT_TTL :
+					kind == NOT_FOUND ? CacheConfig.NEGATIVE_404_TTL : CacheConfig.NEGATIVE_5XX_TTL);
+			List<String> header = null;
+			byte[] body = null;
+			int lines = in.readInt();
+			if (lines >= 0) {
+				header = new ArrayList<String>();
+				for (int i = 0; i < lines; i++) {
+					header.add(PeerLink.readString(in));
+				}
+				int length = in.readInt();
+				if (length < 0 || length > MAX_BODY) {
+					throw new IOException("Bad body length " + length);
+				}
+				body = new byte[length];
+				in.readFully(body);
+			}
+			if (key == null || ttl <= 0) {
+				return;
+			}
+			put(key, new Entry(kind, System.currentTimeMillis() + ttl, header, body));
+		} catch (IOException e) {
+			System.err.println("Bad negative entry from peer: " + e.getMessage());
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private Entry live(String key, long now) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.expires <= now) {
+			entries.remove(key);
+			return null;
+		}
+		return entry;
+	}
+
+	private synchronized void put(String key, Entry entry) {
+		entries.put(key, entry);
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+		while (entries.size() > maxEntries && eldest.hasNext()) {
+			eldest.next();
+			eldest.remove();
+		}
+	}
+
+	/* key, kind, ms left, then header lines and body, or -1 for a host */
+	private static byte[] encode(String key, Entry entry) {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(payload);
+		try {
+			PeerLink.writeString(out, key);
+			out.writeByte(entry.kind);
+			out.writeLong(entry.expires - System.currentTimeMillis());
+			if (entry.header == null) {
+				out.writeInt(-1);
+			} else {
+				out.writeInt(entry.header.size());
+				for (String line: entry.header) {
+					PeerLink.writeString(out, line);
+				}
+				out.writeInt(entry.body.length);
+				out.write(entry.body);
+			}
+		} catch (IOException e) {
+			// not thrown writing to memory
+		}
+		return payload.toByteArray();
+	}
+
+}
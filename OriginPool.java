@@ -0,0 +1,197 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * Keep-alive connections to web servers, pooled per host and port. A
+ * connection is returned to the pool once its response has been read in
+ * full, and closed after sitting idle for dcache.originIdle ms. At most
+ * dcache.originMaxPerHost connections to a host are in use at once.
+ *
+ */
+public class OriginPool {
+
+	public static class Connection {
+		public final String key;
+		public final Socket socket;
+		public final InputStream in;
+		public final OutputStream out;
+		/* true if the connection has served a response before */
+		public final boolean reused;
+		long idleSince;
+
+		Connection(String key, Socket socket, boolean reused) throws IOException {
+			this.key = key;
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream(), HttpStreams.BUFFER_SIZE);
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+			this.reused = reused;
+		}
+
+		private Connection(Connection idle) {
+			this.key = idle.key;
+			this.socket = idle.socket;
+			this.in = idle.in;
+			this.out = idle.out;
+			this.reused = true;
+		}
+	}
+
+	private final DnsCache dns;
+	private final long idleTimeout;
+	private final int maxPerHost;
+	private final int connectTimeout;
+
+	// host:port : idle connections, most recently used last
+	private final ConcurrentHashMap<String, ArrayDeque<Connection>> idle =
+			new ConcurrentHashMap<String, ArrayDeque<Connection>>();
+	private final ConcurrentHashMap<String, Semaphore> inUse = new ConcurrentHashMap<String, Semaphore>();
+
+	public OriginPool(DnsCache dns, long idleTimeout, int maxPerHost, int connectTimeout) {
+		this.dns = dns;
+		this.idleTimeout = idleTimeout;
+		this.maxPerHost = maxPerHost;
+		this.connectTimeout = connectTimeout;
+
+		Thread sweeper = new Thread("OriginPoolSweeper") {
+			public void run() {
+				while (true) {
+					try {
+						sleep(Math.max(1000, OriginPool.this.idleTimeout / 2));
+					} catch (InterruptedException e) {
+						break;
+					}
+					sweep();
+				}
+			}
+		};
+		sweeper.setDaemon(true);
+		sweeper.start();
+	}
+
+	/* Returns an idle connection to the host, or opens a new one */
+	public Connection acquire(String host, int port) throws IOException {
+		String key = host + ":" + port;
+		Semaphore permits = inUse.get(key);
+		if (permits == null) {
+			Semaphore created = new Semaphore(maxPerHost);
+			permits = inUse.putIfAbsent(key, created);
+			if (permits == null) {
+				permits = created;
+			}
+		}
+		try {
+			if (!permits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS)) {
+				throw new IOException("Too many connections to " + key);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for " + key);
+		}
+
+		try {
+			ArrayDeque<Connection> connections = idle.get(key);
+			if (connections != null) {
+				long now = System.currentTimeMillis();
+				synchronized (connections) {
+					Connection connection;
+					while ((connection = connections.pollLast()) != null) {
+						if (now - connection.idleSince < idleTimeout && !connection.socket.isClosed()) {
+							return new Connection(connection);
+						}
+						close(connection);
+					}
+				}
+			}
+			return open(key, host, port);
+		} catch (IOException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/*
+	 * Hands a connection back once its response has been read. Connections
+	 * that can't carry another request are closed.
+	 */
+	public void release(Connection connection, boolean reusable) {
+		String key = connection.key;
+		if (reusable && !connection.socket.isClosed()) {
+			connection.idleSince = System.currentTimeMillis();
+			ArrayDeque<Connection> connections = idle.get(key);
+			if (connections == null) {
+				ArrayDeque<Connection> created = new ArrayDeque<Connection>();
+				connections = idle.putIfAbsent(key, created);
+				if (connections == null) {
+					connections = created;
+				}
+			}
+			synchronized (connections) {
+				if (connections.size() < maxPerHost) {
+					connections.addLast(connection);
+					connection = null;
+				}
+			}
+		}
+		if (connection != null) {
+			close(connection);
+		}
+		inUse.get(key).release();
+	}
+
+	private Connection open(String key, String host, int port) throws IOException {
+		InetAddress[] addresses = dns.resolve(host);
+		IOException failure = null;
+		for (InetAddress address: addresses) {
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(address, port), connectTimeout);
+				socket.setTcpNoDelay(true);
+				return new Connection(key, socket, false);
+			} catch (IOException e) {
+				failure = e;
+				try {
+					socket.close();
+				} catch (IOException closing) {}
+			}
+		}
+		throw failure != null ? failure : new IOException("No address for " + host);
+	}
+
+	/* Closes connections that have been idle too long */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		for (ArrayDeque<Connection> connections: idle.values()) {
+			synchronized (connections) {
+				Iterator<Connection> it = connections.iterator();
+				while (it.hasNext()) {
+					Connection connection = it.next();
+					if (now - connection.idleSince >= idleTimeout) {
+						it.remove();
+						close(connection);
+					}
+				}
+			}
+		}
+	}
+
+	private static void close(Connection connection) {
+		try {
+			connection.socket.close();
+		} catch (IOException e) {}
+	}
+
+}
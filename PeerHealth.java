@@ -0,0 +1,206 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * How well each peer, and the web servers as a whole, have been answering.
+ * Every body fetched updates a moving average of the time to its first byte,
+ * and every answer one of how often the peer failed, and peers are tried in
+ * order of their expected time, an average inflated by failures. A lookup's
+ * round trip only shows the peer is up; it says nothing of how soon a body
+ * comes. A peer not yet timed is expected to take the peer timeout. A peer
+ * slower than the web servers is only asked for one miss in PROBE, to see
+ * whether it has got faster.
+ *
+ * A circuit breaker keeps us off a failing peer: after
+ * dcache.breakerFailures failures in a row it is left alone for
+ * dcache.breakerBackoff ms, then allowed one trial request. A failed trial
+ * doubles the backoff, up to a minute; a success closes the breaker.
+ *
+ */
+public class PeerHealth {
+
+	/* weight of the newest sample in the moving averages */
+	private static final double ALPHA = 0.2;
+	/* samples needed before a latency is trusted */
+	private static final int WARM = 20;
+	private static final long MAX_BACKOFF = 60000;
+	private static final int PROBE = 20;
+
+	/* What we've seen of one peer */
+	public static class Score {
+		/* time to first byte of answers, for choosing when to hedge */
+		public final Histogram firstByte = new Histogram();
+		// guarded by this
+		private double latency;
+		private double errorRate;
+		private int failures;
+		private long openUntil;
+		private long backoff = CacheConfig.BREAKER_BACKOFF;
+		private boolean trial;
+
+		/* A body that started to arrive after nanos */
+		synchronized void success(long nanos) {
+			latency = firstByte.count() == 0 ? nanos : latency * (1 - ALPHA) + nanos * ALPHA;
+			firstByte.record(nanos);
+			answered();
+		}
+
+		/* An answer of any kind, which closes the breaker */
+		synchronized void answered() {
+			errorRate *= 1 - ALPHA;
+			failures = 0;
+			openUntil = 0;
+			trial = false;
+			backoff = CacheConfig.BREAKER_BACKOFF;
+		}
+
+		/* True if this failure opened the breaker */
+		synchronized boolean failure() {
+			errorRate = errorRate * (1 - ALPHA) + ALPHA;
+			failures++;
+			if (trial) {
+				trial = false;
+				backoff = Math.min(backoff * 2, MAX_BACKOFF);
+				openUntil = System.currentTimeMillis() + backoff;
+				return true;
+			}
+			if (openUntil == 0 && failures >= CacheConfig.BREAKER_FAILURES) {
+				openUntil = System.currentTimeMillis() + backoff;
+				return true;
+			}
+			return false;
+		}
+
+		/* True if the peer may be asked; half open lets one trial through per backoff */
+		synchronized boolean allowed(long now) {
+			if (openUntil == 0) {
+				return true;
+			}
+			if (now < openUntil) {
+				return false;
+			}
+			trial = true;
+			openUntil = now + backoff;
+			return true;
+		}
+
+		synchronized boolean open(long now) {
+			return openUntil != 0 && now < openUntil;
+		}
+
+		/* Expected ns to the first byte of a body, the peer timeout until one is timed */
+		public synchronized double expected() {
+			double time = firstByte.count() == 0 ? CacheConfig.PEER_TIMEOUT * 1e6 : latency;
+			// a peer failing half the time takes twice as long to be of use
+			return time / Math.max(0.05, 1 - errorRate);
+		}
+
+		synchronized long samples() {
+			return firstByte.count();
+		}
+	}
+
+	private final ConcurrentHashMap<String, Score> peers = new ConcurrentHashMap<String, Score>();
+	private final Score origin = new Score();
+	private final AtomicLong probes = new AtomicLong();
+
+	public Score score(String cacheAddr) {
+		Score score = peers.get(cacheAddr);
+		if (score == null) {
+			Score created = new Score();
+			score = peers.putIfAbsent(cacheAddr, created);
+			if (score == null) {
+				score = created;
+			}
+		}
+		return score;
+	}
+
+	/* Time to the first byte of a body from the peer */
+	public void success(String cacheAddr, long nanos) {
+		score(cacheAddr).success(nanos);
+	}
+
+	/* A lookup the peer answered, which isn't timed */
+	public void answered(String cacheAddr) {
+		score(cacheAddr).answered();
+	}
+
+	public void failure(String cacheAddr) {
+		if (score(cacheAddr).failure()) {
+			System.out.println(">>> BREAKER OPEN: " + cacheAddr);
+		}
+	}
+
+	/* Time to the first byte of a web server's answer */
+	public void originAnswered(long nanos) {
+		origin.success(nanos);
+	}
+
+	/*
+	 * False while the peer's breaker is open. Once it is half open this takes
+	 * the trial, so it is only called just before asking the peer.
+	 */
+	public boolean allowed(String cacheAddr) {
+		return score(cacheAddr).allowed(System.currentTimeMillis());
+	}
+
+	public boolean open(String cacheAddr) {
+		Score score = peers.get(cacheAddr);
+		return score != null && score.open(System.currentTimeMillis());
+	}
+
+	/*
+	 * The peers fastest first, without those whose breaker is open or that
+	 * are known to be slower than the web servers. A peer whose breaker is
+	 * half open is kept; allowed, called when it is asked, lets its trial
+	 * through.
+	 */
+	public List<String> rank(List<String> candidates) {
+		final Map<String, Double> expected = new HashMap<String, Double>();
+		List<String> ranked = new ArrayList<String>();
+		double originExpected = origin.samples() >= WARM ? origin.expected() : Double.MAX_VALUE;
+		long now = System.currentTimeMillis();
+		for (String cacheAddr: candidates) {
+			Score score = score(cacheAddr);
+			double time = score.expected();
+			if (score.samples() >= WARM && time > originExpected && probes.incrementAndGet() % PROBE != 0) {
+				continue;
+			}
+			if (score.open(now)) {
+				continue;
+			}
+			expected.put(cacheAddr, time);
+			ranked.add(cacheAddr);
+		}
+		Collections.sort(ranked, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return Double.compare(expected.get(a), expected.get(b));
+			}
+		});
+		return ranked;
+	}
+
+	/*
+	 * ms to wait on the peer before hedging: its dcache.hedgePercentile time
+	 * to first byte, or a quarter of the peer timeout until that is known.
+	 */
+	public long hedgeDelay(String cacheAddr) {
+		Score score = score(cacheAddr);
+		if (score.samples() < WARM) {
+			return CacheConfig.PEER_TIMEOUT / 4;
+		}
+		long nanos = score.firstByte.percentile(CacheConfig.HEDGE_PERCENTILE);
+		return Math.max(CacheConfig.HEDGE_MIN, nanos / 1000000);
+	}
+
+}
@@ -0,0 +1,563 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * A long-lived connection to one peer cache carrying many lookups and
+ * fetches at once. The link opens with the line DCACHE/1 and a blank line on
+ * the peer's proxy port, and after that both sides send binary frames:
+ *
+ *   int payload length, byte type, int request id, payload
+ *
+ * A GET asks for a url only if the peer holds it, or with the FETCH flag for
+ * the peer to fetch it like any client would. The peer answers MISS, or with
+ * the HTTP response as DATA frames followed by END. At most WINDOW DATA
+ * frames of a GET are sent ahead of the reader, which hands back CREDIT as
+ * it reads them, so a slow reader only holds up its own body and never the
+ * link. A body served from the peer's cache is first offered by its hash in
+ * an OFFER frame, and a side that holds those bytes already can CANCEL the
+ * rest once it has the header. A LOOKUP asks about many urls in one frame
+ * and is answered by one ANSWER frame. Lookups made while another frame is
+ * being written are batched into the next LOOKUP. A NEGATIVE frame tells the
+ * peer of a failure to remember, see NegativeCache, and a HOT frame of a url
+ * it may want a copy of, see Replicator; neither is answered.
+ *
+ */
+public class PeerLink {
+
+	public static final String HELLO = "DCACHE/1";
+
+	// frame types
+	static final byte GET = 1;
+	static final byte LOOKUP = 2;
+	static final byte ANSWER = 3;
+	static final byte DATA = 4;
+	static final byte END = 5;
+	static final byte MISS = 6;
+	static final byte ERROR = 7;
+	static final byte CANCEL = 8;
+	static final byte NEGATIVE = 9;
+	static final byte OFFER = 10;
+	static final byte HOT = 11;
+	static final byte CREDIT = 12;
+
+	// GET flags
+	static final byte FETCH = 1;
+
+	static final int MAX_FRAME = 1024 * 1024;
+	/* DATA frames of a GET that may be unread at once */
+	static final int WINDOW = 64;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* A frame as read off the wire */
+	static class Frame {
+		final byte type;
+		final int id;
+		final byte[] payload;
+
+		Frame(byte type, int id, byte[] payload) {
+			this.type = type;
+			this.id = id;
+			this.payload = payload;
+		}
+	}
+
+	static Frame readFrame(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_FRAME) {
+			throw new IOException("Bad frame length " + length);
+		}
+		byte type = in.readByte();
+		int id = in.readInt();
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return new Frame(type, id, payload);
+	}
+
+	/* Writes one whole frame, callers hold the stream's lock */
+	static void writeFrame(DataOutputStream out, byte type, int id, byte[] buf, int off, int len)
+			throws IOException {
+		out.writeInt(len);
+		out.writeByte(type);
+		out.writeInt(id);
+		out.write(buf, off, len);
+		out.flush();
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s == null ? null : s.getBytes(UTF8);
+		out.writeInt(bytes == null ? -1 : bytes.length);
+		if (bytes != null) {
+			out.write(bytes);
+		}
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > MAX_FRAME) {
+			throw new IOException("Bad string length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/* Ends of a call's body, queued after its last DATA frame */
+	private static final byte[] ENDED = new byte[0];
+	private static final byte[] MISSED = new byte[0];
+	private static final byte[] FAILED = new byte[0];
+
+	/*
+	 * A GET on the link. Once await says the peer has the url, the call reads
+	 * as the peer's HTTP response.
+	 */
+	public class Call extends InputStream {
+		private final int id;
+		// a window of DATA frames and the frame ending them
+		private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(WINDOW + 1);
+		private byte[] chunk;
+		private int position;
+		/* DATA frames read since credit was last handed back */
+		private int read;
+		private volatile boolean finished;
+		private volatile Semaphore bell;
+		private volatile String offered;
+
+		Call(int id) {
+			this.id = id;
+		}
+
+		/* Has bell released for every frame that arrives, to wait on several calls */
+		public void ring(Semaphore bell) {
+			this.bell = bell;
+			if (!chunks.isEmpty()) {
+				bell.release();
+			}
+		}
+
+		/* The hash of the body the peer offered, null if it didn't */
+		public String offered() {
+			return offered;
+		}
+
+		/* True once the first frame is in, so await won't block */
+		public boolean answered() {
+			return chunk != null || !chunks.isEmpty();
+		}
+
+		/*
+		 * Waits up to timeout ms for the peer's first frame. Returns false if
+		 * the peer doesn't hold the url.
+		 */
+		public boolean await(long timeout) throws IOException {
+			try {
+				chunk = take(timeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting on " + address);
+			}
+			if (chunk == null) {
+				throw new IOException("No answer from " + address);
+			}
+			if (chunk == FAILED) {
+				throw new IOException("Link to " + address + " failed");
+			}
+			return chunk != MISSED;
+		}
+
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+		}
+
+		public int read(byte[] buf, int off, int len) throws IOException {
+			while (chunk != ENDED && position == chunk.length) {
+				try {
+					chunk = take(CacheConfig.COALESCE_WAIT);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					chunk = null;
+				}
+				position = 0;
+				if (chunk == null || chunk == FAILED || chunk == MISSED) {
+					chunk = ENDED;
+					throw new IOException("Body from " + address + " broke off");
+				}
+			}
+			if (chunk == ENDED) {
+				return -1;
+			}
+			int n = Math.min(len, chunk.length - position);
+			System.arraycopy(chunk, position, buf, off, n);
+			position += n;
+			return n;
+		}
+
+		/* The next frame, handing back credit for every half window of DATA read */
+		private byte[] take(long timeout) throws InterruptedException {
+			byte[] next = chunks.poll(timeout, TimeUnit.MILLISECONDS);
+			if (next != null && next != ENDED && next != MISSED && next != FAILED &&
+					++read >= WINDOW / 2 && !finished) {
+				ByteArrayOutputStream payload = new ByteArrayOutputStream();
+				try {
+					new DataOutputStream(payload).writeInt(read);
+				} catch (IOException e) {
+					// not thrown writing to memory
+				}
+				send(CREDIT, id, payload.toByteArray());
+				read = 0;
+			}
+			return next;
+		}
+
+		/* Stops the peer sending a body that won't be read */
+		public void close() {
+			if (calls.remove(id) != null && !finished) {
+				send(CANCEL, id, new byte[0]);
+			}
+		}
+
+		/* Called by the link's reader, which must never wait on the call */
+		void deliver(byte[] data) {
+			if (data == ENDED || data == MISSED || data == FAILED) {
+				finished = true;
+				calls.remove(id);
+			}
+			if (data == FAILED) {
+				// the reader needs to hear about it, not the bytes before it
+				chunks.clear();
+			}
+			if (!chunks.offer(data)) {
+				// the peer sent past its window, drop the call
+				System.err.println("Peer " + address + " overran the window of call " + id);
+				close();
+				finished = true;
+				chunks.clear();
+				chunks.offer(FAILED);
+			}
+			Semaphore waiting = bell;
+			if (waiting != null) {
+				waiting.release();
+			}
+		}
+	}
+
+	/* A url asked about in a LOOKUP */
+	private static class Lookup {
+		final String url;
+		/* the batch it was sent in */
+		volatile Batch batch;
+		// guarded by this
+		boolean answered;
+		boolean present;
+		String contentType;
+
+		Lookup(String url) {
+			this.url = url;
+		}
+
+		synchronized void answer(boolean present, String contentType) {
+			this.present = present;
+			this.contentType = contentType;
+			this.answered = true;
+			notifyAll();
+		}
+	}
+
+	/* The lookups sent in one LOOKUP frame, in order */
+	private static class Batch {
+		final int id;
+		final List<Lookup> lookups;
+		/* lookups still waiting; the batch is forgotten once none are */
+		final AtomicInteger waiting;
+
+		Batch(int id, List<Lookup> lookups) {
+			this.id = id;
+			this.lookups = lookups;
+			this.waiting = new AtomicInteger(lookups.size());
+		}
+	}
+
+	public final String address;
+	private final String host;
+	private final int port;
+	private final AtomicInteger ids = new AtomicInteger();
+	private final ConcurrentHashMap<Integer, Call> calls = new ConcurrentHashMap<Integer, Call>();
+	private final ConcurrentHashMap<Integer, Batch> batches = new ConcurrentHashMap<Integer, Batch>();
+	private final List<Lookup> pendingLookups = new ArrayList<Lookup>();
+
+	// guarded by this
+	private Socket socket;
+	private DataOutputStream out;
+
+	public PeerLink(String address) {
+		this.address = address;
+		this.host = address.split(":")[0];
+		this.port = Integer.parseInt(address.split(":")[1]);
+	}
+
+	/* Asks the peer for url, see Call */
+	public Call get(String url, boolean fetch) throws IOException {
+		Call call = new Call(ids.incrementAndGet());
+		calls.put(call.id, call);
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream frame = new DataOutputStream(payload);
+		frame.writeByte(fetch ? FETCH : 0);
+		writeString(frame, url);
+		if (!send(GET, call.id, payload.toByteArray())) {
+			calls.remove(call.id);
+			throw new IOException("Couldn't reach " + address);
+		}
+		return call;
+	}
+
+	/*
+	 * Asks whether the peer holds url, waiting up to timeout ms. Returns the
+	 * content type in a one element array, or null if the peer doesn't hold it.
+	 */
+	public String[] lookup(String url, long timeout) throws IOException {
+		Lookup lookup = new Lookup(url);
+		synchronized (pendingLookups) {
+			pendingLookups.add(lookup);
+		}
+		sendLookups();
+
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (lookup) {
+			while (!lookup.answered) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					abandon(lookup);
+					throw new IOException("No answer from " + address);
+				}
+				try {
+					lookup.wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					abandon(lookup);
+					throw new IOException("Interrupted waiting on " + address);
+				}
+			}
+			return lookup.present ? new String[]{lookup.contentType} : null;
+		}
+	}
+
+	/* Forgets the batch of a lookup given up on, once no lookup in it is waiting */
+	private void abandon(Lookup lookup) {
+		Batch batch = lookup.batch;
+		if (batch != null && batch.waiting.decrementAndGet() == 0) {
+			batches.remove(batch.id, batch);
+		}
+	}
+
+	/* Tells the peer of a failure, as NegativeCache encodes it */
+	public void share(byte[] negative) {
+		send(NEGATIVE, 0, negative);
+	}
+
+	/* Tells the peer url is hot at cacheAddr, ours, for it to pull. False if unreachable. */
+	public boolean hot(String cacheAddr, String url) {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream frame = new DataOutputStream(payload);
+		try {
+			writeString(frame, cacheAddr);
+			writeString(frame, url);
+		} catch (IOException e) {
+			// not thrown writing to memory
+		}
+		return send(HOT, 0, payload.toByteArray());
+	}
+
+	/* Sends every pending lookup in one frame */
+	private void sendLookups() throws IOException {
+		synchronized (this) {
+			List<Lookup> batch;
+			synchronized (pendingLookups) {
+				if (pendingLookups.isEmpty()) {
+					// sent with an earlier batch
+					return;
+				}
+				batch = new ArrayList<Lookup>(pendingLookups);
+				pendingLookups.clear();
+			}
+			ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			DataOutputStream frame = new DataOutputStream(payload);
+			frame.writeInt(batch.size());
+			for (Lookup lookup: batch) {
+				writeString(frame, lookup.url);
+			}
+			int id = ids.incrementAndGet();
+			Batch sent = new Batch(id, batch);
+			for (Lookup lookup: batch) {
+				lookup.batch = sent;
+			}
+			batches.put(id, sent);
+			if (!send(LOOKUP, id, payload.toByteArray())) {
+				batches.remove(id);
+				for (Lookup lookup: batch) {
+					lookup.answer(false, null);
+				}
+				throw new IOException("Couldn't reach " + address);
+			}
+		}
+	}
+
+	/* Writes a frame, connecting first if need be. False if the peer is unreachable. */
+	private synchronized boolean send(byte type, int id, byte[] payload) {
+		try {
+			if (out == null) {
+				connect();
+			}
+			writeFrame(out, type, id, payload, 0, payload.length);
+			return true;
+		} catch (IOException e) {
+			System.err.println("Couldn't get I/O for the connection to " + address);
+			fail(socket);
+			return false;
+		}
+	}
+
+	private void connect() throws IOException {
+		Socket connecting = new Socket();
+		try {
+			connecting.connect(new InetSocketAddress(host, port), CacheConfig.PEER_TIMEOUT);
+			connecting.setTcpNoDelay(true);
+			connecting.setKeepAlive(true);
+			OutputStream raw = connecting.getOutputStream();
+			raw.write((HELLO + "\r\n\r\n").getBytes(HttpStreams.ASCII));
+		} catch (IOException e) {
+			connecting.close();
+			throw e;
+		}
+		socket = connecting;
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+				HttpStreams.BUFFER_SIZE));
+		final Socket reading = socket;
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(),
+				HttpStreams.BUFFER_SIZE));
+		Thread reader = new Thread("PeerLink " + address) {
+			public void run() {
+				try {
+					while (true) {
+						dispatch(readFrame(in));
+					}
+				} catch (IOException e) {
+					fail(reading);
+				}
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+		System.out.println("> PEER LINK: " + address);
+	}
+
+	/* Hands a frame from the peer to the call or lookups it answers */
+	private void dispatch(Frame frame) throws IOException {
+		if (frame.type == ANSWER) {
+			Batch batch = batches.remove(frame.id);
+			if (batch == null) {
+				return;
+			}
+			DataInputStream answers = new DataInputStream(new ByteArrayInputStream(frame.payload));
+			for (Lookup lookup: batch.lookups) {
+				boolean present = answers.readBoolean();
+				lookup.answer(present, readString(answers));
+			}
+			return;
+		}
+		Call call = calls.get(frame.id);
+		if (call == null) {
+			// cancelled
+			return;
+		}
+		switch (frame.type) {
+		case DATA:
+			call.deliver(frame.payload);
+			break;
+		case END:
+			call.deliver(ENDED);
+			break;
+		case MISS:
+			call.deliver(MISSED);
+			break;
+		case OFFER:
+			String hash = new String(frame.payload, UTF8);
+			// it names a file here, so anything but a SHA-256 is streamed instead
+			call.offered = sha256(hash) ? hash : null;
+			break;
+		default:
+			call.deliver(FAILED);
+		}
+	}
+
+	/* True for 64 lowercase hex characters, as DiskStore names bodies */
+	private static boolean sha256(String hash) {
+		if (hash.length() != 64) {
+			return false;
+		}
+		for (int i = 0; i < hash.length(); i++) {
+			char c = hash.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* Drops a broken connection, failing everything waiting on it */
+	private void fail(Socket broken) {
+		synchronized (this) {
+			if (broken == null || socket != broken) {
+				return;
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {}
+			socket = null;
+			out = null;
+		}
+		for (Integer id: batches.keySet()) {
+			Batch batch = batches.remove(id);
+			if (batch != null) {
+				for (Lookup lookup: batch.lookups) {
+					lookup.answer(false, null);
+				}
+			}
+		}
+		for (Call call: calls.values()) {
+			call.deliver(FAILED);
+		}
+	}
+
+	public synchronized boolean isOpen() {
+		return out != null;
+	}
+
+	public synchronized void close() {
+		fail(socket);
+	}
+
+}
@@ -0,0 +1,303 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * The answering end of a peer's PeerLink. Lookups are answered as they are
+ * read, and each GET is served on its own thread so that a slow body doesn't
+ * hold up the rest of the link, up to MAX_BODIES at once; a GET past that is
+ * answered MISS, so a peer can't start threads here without bound. Each body
+ * is sent within the window of credit the peer hands back as it reads. A
+ * body stored by content is offered by its hash before it is sent, in case
+ * the peer holds those bytes already.
+ *
+ */
+public class PeerSession extends Thread {
+
+	/* bodies a peer may have sent at once over its link */
+	private static final int MAX_BODIES = 32;
+
+	private final ProxyCacheThread proxy;
+	private final ServiceDiscovery sd;
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	/* the socket's channel, to send cached bodies with transferTo, or null */
+	private final WritableByteChannel channel;
+	private final ExecutorService workers;
+	/* bodies being sent, by request id; a CANCEL for any other id is ignored */
+	private final ConcurrentHashMap<Integer, FrameOutput> active =
+			new ConcurrentHashMap<Integer, FrameOutput>();
+
+	/* in is the connection's input just after the DCACHE/1 line */
+	public PeerSession(ProxyCacheThread proxy, ServiceDiscovery sd, Socket socket, InputStream in,
+			OutputStream out, ExecutorService workers) {
+		super("PeerSession " + socket.getRemoteSocketAddress());
+		this.proxy = proxy;
+		this.sd = sd;
+		this.socket = socket;
+		this.in = new DataInputStream(in);
+		this.out = new DataOutputStream(out);
+		this.channel = out instanceof HttpStreams.SocketOutput ? ((HttpStreams.SocketOutput) out).channel : null;
+		this.workers = workers;
+		setDaemon(true);
+	}
+
+	public void run() {
+		sd.metrics.peerSessions.incrementAndGet();
+		try {
+			// links stay open while idle
+			socket.setSoTimeout(0);
+			while (true) {
+				PeerLink.Frame frame = PeerLink.readFrame(in);
+				switch (frame.type) {
+				case PeerLink.LOOKUP:
+					answer(frame);
+					break;
+				case PeerLink.GET:
+					serve(frame);
+					break;
+				case PeerLink.CANCEL:
+					FrameOutput cancelled = active.get(frame.id);
+					if (cancelled != null) {
+						cancelled.cancel();
+					}
+					break;
+				case PeerLink.CREDIT:
+					FrameOutput body = active.get(frame.id);
+					if (body != null) {
+						body.grant(new DataInputStream(new ByteArrayInputStream(frame.payload)).readInt());
+					}
+					break;
+				case PeerLink.NEGATIVE:
+					sd.negative.learn(frame.payload);
+					break;
+				case PeerLink.HOT:
+					DataInputStream hot = new DataInputStream(new ByteArrayInputStream(frame.payload));
+					String from = PeerLink.readString(hot);
+					proxy.pullHot(from, PeerLink.readString(hot));
+					break;
+				default:
+					System.err.println("Unknown peer frame " + frame.type);
+				}
+			}
+		} catch (IOException e) {
+		} finally {
+			sd.metrics.peerSessions.decrementAndGet();
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/* YES for urls that are fresh in the cache here or being fetched into it */
+	private void answer(PeerLink.Frame frame) throws IOException {
+		DataInputStream urls = new DataInputStream(new ByteArrayInputStream(frame.payload));
+		int count = urls.readInt();
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream answers = new DataOutputStream(payload);
+		for (int i = 0; i < count; i++) {
+			String url = PeerLink.readString(urls);
+			// metadata = [fileName, contentType, size, storedAt, expires, staleWindow, etag, lastModified,
+			//             encoding, identitySize]
+			String[] metadata = sd.cache.get(url);
+			if (metadata != null && !Freshness.fresh(metadata, System.currentTimeMillis())) {
+				metadata = null;
+			}
+			InFlight flight = sd.inFlight.get(url);
+			CacheFill fill = flight == null ? null : flight.fill();
+			String contentType = metadata != null ? metadata[1] : fill != null ? fill.contentType() : null;
+			answers.writeBoolean(metadata != null || fill != null);
+			PeerLink.writeString(answers, contentType);
+			System.out.println("<<< LOOKUP " + url + " -- " + (metadata != null || fill != null ? "YES" : "NO"));
+		}
+		send(PeerLink.ANSWER, frame.id, payload.toByteArray(), 0, payload.size());
+	}
+
+	private void serve(final PeerLink.Frame frame) throws IOException {
+		DataInputStream request = new DataInputStream(new ByteArrayInputStream(frame.payload));
+		final boolean fetch = (request.readByte() & PeerLink.FETCH) != 0;
+		final String url = PeerLink.readString(request);
+		// only this thread adds to active, so it can't fill up in between
+		if (active.size() >= MAX_BODIES) {
+			System.out.println("<<< PEER GET " + url + " -- busy, MISS");
+			send(PeerLink.MISS, frame.id, new byte[0], 0, 0);
+			return;
+		}
+		final FrameOutput body = new FrameOutput(frame.id);
+		active.put(frame.id, body);
+		workers.execute(new Runnable() {
+			public void run() {
+				try {
+					System.out.println("<<< PEER GET " + url + (fetch ? " (fetch)" : ""));
+					// metadata = [fileName, contentType, size, storedAt, expires, staleWindow, etag,
+					//             lastModified, encoding, identitySize]
+					String[] metadata = fetch ? null : sd.cache.get(url);
+					String hash = DiskStore.hashOf(metadata);
+					if (hash != null && Freshness.fresh(metadata, System.currentTimeMillis())) {
+						byte[] offer = hash.getBytes(PeerLink.UTF8);
+						send(PeerLink.OFFER, frame.id, offer, 0, offer.length);
+						body.offered = true;
+					}
+					boolean served = proxy.servePeer(url, fetch, metadata, body);
+					if (!served && body.sent == 0) {
+						send(PeerLink.MISS, frame.id, new byte[0], 0, 0);
+					} else {
+						body.flush();
+						send(PeerLink.END, frame.id, new byte[0], 0, 0);
+						sd.metrics.peerServed.increment();
+						sd.metrics.peerServedBytes.add(body.sent);
+					}
+				} catch (IOException e) {
+					if (!body.cancelled) {
+						byte[] message = String.valueOf(e.getMessage()).getBytes(PeerLink.UTF8);
+						try {
+							send(PeerLink.ERROR, frame.id, message, 0, message.length);
+						} catch (IOException closed) {}
+					}
+				} finally {
+					active.remove(frame.id);
+				}
+			}
+		});
+	}
+
+	private void send(byte type, int id, byte[] buf, int off, int len) throws IOException {
+		synchronized (out) {
+			PeerLink.writeFrame(out, type, id, buf, off, len);
+		}
+	}
+
+	/*
+	 * A response body sent as DATA frames within the peer's credit, stopping
+	 * once the peer cancels. A cached file is sent with transferTo after each
+	 * frame's header, so peer hits don't pass through the heap either.
+	 */
+	private class FrameOutput extends OutputStream implements HttpStreams.FileOutput {
+		private final int id;
+		private final byte[] buffer = new byte[HttpStreams.BUFFER_SIZE];
+		private int count;
+		// guarded by this, DATA frames the peer has room for
+		private int credit = PeerLink.WINDOW;
+		volatile boolean cancelled;
+		long sent;
+		/* sends the first write, the header, on its own so the peer can cancel early */
+		boolean offered;
+
+		FrameOutput(int id) {
+			this.id = id;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		public void write(byte[] buf, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(buf, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+				if (count == buffer.length) {
+					flush();
+				}
+			}
+			if (offered) {
+				offered = false;
+				flush();
+			}
+		}
+
+		public void flush() throws IOException {
+			if (cancelled) {
+				throw new IOException("Cancelled by peer");
+			}
+			if (count > 0) {
+				awaitCredit();
+				send(PeerLink.DATA, id, buffer, 0, count);
+				sent += count;
+				count = 0;
+			}
+		}
+
+		public boolean transfer(FileChannel file, long position, long count) throws IOException {
+			if (channel == null) {
+				return false;
+			}
+			flush();
+			long end = position + count;
+			while (position < end) {
+				if (cancelled) {
+					throw new IOException("Cancelled by peer");
+				}
+				int length = (int) Math.min(buffer.length, end - position);
+				awaitCredit();
+				synchronized (out) {
+					out.writeInt(length);
+					out.writeByte(PeerLink.DATA);
+					out.writeInt(id);
+					out.flush();
+					long frameEnd = position + length;
+					while (position < frameEnd) {
+						long moved = file.transferTo(position, frameEnd - position, channel);
+						if (moved <= 0 && file.size() < frameEnd) {
+							// the frame can't be finished, and the link can't be read past it
+							socket.close();
+							throw new IOException("File ended before " + count + " bytes were sent");
+						}
+						position += moved;
+					}
+				}
+				sent += length;
+			}
+			return true;
+		}
+
+		/* Takes credit for one frame, waiting for the peer to read if it has none */
+		private synchronized void awaitCredit() throws IOException {
+			long deadline = System.currentTimeMillis() + CacheConfig.COALESCE_WAIT;
+			while (credit == 0) {
+				if (cancelled) {
+					throw new IOException("Cancelled by peer");
+				}
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					throw new IOException("Peer stopped reading");
+				}
+				try {
+					wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting on peer");
+				}
+			}
+			credit--;
+		}
+
+		/* Credit handed back by the peer */
+		synchronized void grant(int frames) {
+			credit += frames;
+			notifyAll();
+		}
+
+		/* Stops the body at its next frame, waking a sender waiting for credit */
+		synchronized void cancel() {
+			cancelled = true;
+			notifyAll();
+		}
+	}
+
+}
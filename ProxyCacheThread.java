@@ -1,13 +1,31 @@
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -19,12 +37,22 @@ import java.net.UnknownHostException;
  */
 public class ProxyCacheThread extends Thread {
 	public static final long ONE_SECOND = 1000;
+	/* header marking a GET sent by a peer cache */
+	public static final String FORWARDED = "X-Dcache-Forwarded";
+	/* ms a keep-alive connection keeps its worker waiting for the next request */
+	private static final int PARK_AFTER = 2;
 
 	private ServiceDiscovery sd;
 	private String ip;
 	private int port;
-	private String lastReferrer;
-	private String lastAbsolute;
+	/* ip:port/ as it appears in the Referer of pages we served */
+	private String self;
+	private volatile String lastReferrer;
+	private volatile String lastAbsolute;
+	private final Semaphore inFlight = new Semaphore(CacheConfig.MAX_IN_FLIGHT);
+	private final ExecutorService peerLookups = Executors.newCachedThreadPool();
+	/* null when idle connections keep their thread */
+	private IdleConnections idle;
 
 	public ProxyCacheThread(int port, ServiceDiscovery sd) {
 		super("ProxyCacheThread");
@@ -36,318 +64,1093 @@ public class ProxyCacheThread extends Thread {
 			System.err.println("Unable to get ip address.");
 			System.exit(0);
 		}
+		self = ip + ":" + port + "/";
 		System.out.println("Usage: Go to " + ip + ":" + port + "/<url> in your browser.");
 	}
 
     public void run() {
-    	ServerSocket serverSocket = null;
+    	ServerSocketChannel serverSocket = null;
     	try {
-			serverSocket = new ServerSocket(port);
+    		// channel sockets let cache hits be sent with transferTo
+			serverSocket = ServerSocketChannel.open();
+			serverSocket.socket().bind(new InetSocketAddress(port));
 		} catch (IOException e) {
 			System.err.println("Unable to create socket on port " + port +
 					". Please try another port.");
 			System.exit(0);
 		}
 
+		ExecutorService workers = null;
+		if (!"thread".equals(CacheConfig.SERVE_MODE)) {
+			workers = Executors.newFixedThreadPool(CacheConfig.WORKERS);
+			try {
+				idle = new IdleConnections(this, workers);
+				idle.start();
+			} catch (IOException e) {
+				System.err.println("Unable to open a selector, idle connections keep their worker.");
+			}
+		}
+		System.out.println("> SERVING: " + (workers == null ? "thread per connection" :
+				CacheConfig.WORKERS + " workers") + ", max in flight " + CacheConfig.MAX_IN_FLIGHT);
+
         while (true) {
         	Socket clientSocket = null;
         	while (clientSocket == null) {
         		try {
-        			clientSocket = serverSocket.accept();
+        			inFlight.acquireUninterruptibly();
+        			clientSocket = serverSocket.accept().socket();
         		} catch (IOException e) {
+        			inFlight.release();
         			e.printStackTrace();
         		}
         	}
 
-            try {
-                PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-                BufferedReader in = new BufferedReader(
-                    new InputStreamReader(
-                        (clientSocket).getInputStream()));
-
-                String request = "";
-                String inputLine = "";
-
-                while ((inputLine = in.readLine()) != null) {
-                	if (inputLine.trim().isEmpty()) {
-                		// \r\n
-                		break;
-                	}
-                	request += inputLine + "\r\n";
-                }
-
-                request = request.trim();
-
-                if (request.isEmpty()) {
-                	continue;
-                }
-
-                if (request.startsWith("QUERY")) {
-                	// incoming query: <QUERY url>
-                	String url = request.split(" ")[1].trim();
-                	String[] metadata = sd.cache.get(url);
-                	if (metadata == null) {
-                		out.println("NO");
-                		System.out.println("<<< " + request + " -- NO");
-                	} else {
-                		out.println("YES " + metadata[1]);
-                		System.out.println("<<< " + request + " -- YES");
-                	}
-                	out.flush();
-                } else {
-                	// incoming GET request
-                	String url = formatURL(request);
-                	System.out.println(">>> incoming GET: " + url);
-                	String response = fetchResponseForClient(url, request);
-                	out.println(response);
-                }
-
-                System.out.println("\n--------------------------------------------\n");
-            } catch (IOException e) {
-            } finally {
-            	try {
-					clientSocket.close();
-				} catch (IOException e) {}
+        	sd.metrics.connections.incrementAndGet();
+        	final Connection connection;
+        	try {
+        		connection = new Connection(clientSocket);
+        	} catch (IOException e) {
+        		closeClient(new Connection(clientSocket, null, null));
+        		continue;
+        	}
+        	if (idle != null) {
+        		// a worker is only taken once the request arrives
+        		idle.park(connection);
+        		continue;
+        	}
+        	Runnable handler = new Runnable() {
+        		public void run() {
+        			handleClient(connection);
+        		}
+        	};
+        	if (workers != null) {
+        		workers.execute(handler);
+        	} else {
+        		new Thread(handler, "ProxyCacheClient").start();
+        	}
+        }
+    }
+
+    /* A client connection, kept across its requests */
+    static class Connection {
+    	final Socket socket;
+    	final InputStream in;
+    	final HttpStreams.SocketOutput out;
+    	// refilled by every request on the connection
+    	final HttpRequest parsed = new HttpRequest();
+    	/* when it was last parked, see IdleConnections */
+    	long idleSince;
+
+    	Connection(Socket socket) throws IOException {
+    		this(socket, new BufferedInputStream(socket.getInputStream()),
+    				new HttpStreams.SocketOutput(socket.getOutputStream(), socket.getChannel()));
+    		socket.setSoTimeout(CacheConfig.CLIENT_IDLE);
+    	}
+
+    	Connection(Socket socket, InputStream in, HttpStreams.SocketOutput out) {
+    		this.socket = socket;
+    		this.in = in;
+    		this.out = out;
+    	}
+    }
+
+    /*
+     * Answers requests on a client connection until the client closes it,
+     * asks for it to be closed, or leaves it idle. Pipelined requests are
+     * answered in order, and responses are flushed once no more requests
+     * are waiting. On the worker pool, a connection with nothing left to read
+     * is parked with IdleConnections, freeing the worker until the client
+     * sends again.
+     */
+    void handleClient(Connection connection) {
+    	boolean handedOff = false;
+    	boolean parked = false;
+        try {
+            HttpStreams.SocketOutput out = connection.out;
+            InputStream in = connection.in;
+            HttpRequest parsed = connection.parsed;
+
+            boolean keepAlive = true;
+            while (keepAlive) {
+	            if (!parsed.read(in)) {
+	            	break;
+	            }
+
+	            // peer queries get one answer per connection
+	            keepAlive = false;
+	            if (parsed.startsWith("DIGEST")) {
+	            	// incoming digest pull: <DIGEST epoch version>
+	            	out.write((sd.digests.answer(parsed.text()) + "\r\n").getBytes(HttpStreams.ASCII));
+	            } else if (parsed.is(PeerLink.HELLO)) {
+	            	// a peer's link, which keeps the connection
+	            	new PeerSession(this, sd, connection.socket, in, out, peerLookups).start();
+	            	handedOff = true;
+	            	return;
+	            } else if (parsed.target() != null && parsed.target().startsWith(Metrics.PATH)) {
+	            	// the cache's own numbers, never cached
+	            	out.startResponse(false);
+	            	stats(parsed.target(), out);
+	            	keepAlive = parsed.keepAlive();
+	            } else {
+	            	// incoming GET request
+	            	out.startResponse(!parsed.http10());
+	            	String url = formatURL(parsed);
+	            	System.out.println(">>> incoming GET: " + url);
+	            	sd.metrics.requests.increment();
+	            	if (url == null) {
+	            		sd.metrics.failures.increment();
+	            		out.write(("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\n\r\n")
+	            				.getBytes(HttpStreams.ASCII));
+	            	} else if (!fetchResponseForClient(url, parsed.text(), out)) {
+	            		sd.metrics.failures.increment();
+	            		out.write(("HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\n\r\n")
+	            				.getBytes(HttpStreams.ASCII));
+	            	}
+	            	keepAlive = parsed.keepAlive() && !out.closeAfter();
+	            }
+	            if (!keepAlive || in.available() == 0) {
+	            	out.flush();
+	            }
+
+	            if (keepAlive && idle != null && !nextRequestSoon(connection)) {
+	            	idle.park(connection);
+	            	parked = true;
+	            	return;
+	            }
             }
+        } catch (SocketTimeoutException e) {
+        	// idle keep-alive connection
+        } catch (IOException e) {
+        } finally {
+        	if (handedOff) {
+        		sd.metrics.connections.decrementAndGet();
+        		inFlight.release();
+        	} else if (!parked) {
+        		closeClient(connection);
+        	}
         }
     }
 
     /*
-     * Servers data from peers or makes GET request
+     * True if the client's next request starts within PARK_AFTER ms, as it
+     * does for a busy keep-alive client, which then skips the round trip
+     * through IdleConnections.
      */
-    public String localCacheMiss(String url, String request) {
-    	String response = null;
+    private static boolean nextRequestSoon(Connection connection) throws IOException {
+    	if (connection.in.available() > 0) {
+    		return true;
+    	}
+    	connection.socket.setSoTimeout(PARK_AFTER);
+    	try {
+    		connection.in.mark(1);
+    		if (connection.in.read() == -1) {
+    			throw new IOException("Closed by client");
+    		}
+    		connection.in.reset();
+    		return true;
+    	} catch (SocketTimeoutException e) {
+    		return false;
+    	} finally {
+    		connection.socket.setSoTimeout(CacheConfig.CLIENT_IDLE);
+    	}
+    }
+
+    /* Closes a client connection and gives up its place in flight */
+    void closeClient(Connection connection) {
+    	try {
+    		connection.socket.close();
+    	} catch (IOException e) {}
+    	sd.metrics.connections.decrementAndGet();
+    	inFlight.release();
+    }
+
+    /* Answers /__stats with JSON, or Prometheus text for ?format=prometheus */
+    private void stats(String path, OutputStream out) throws IOException {
+    	boolean prometheus = path.contains("format=prometheus");
+    	byte[] body = (prometheus ? sd.metrics.prometheus(sd) : sd.metrics.json(sd))
+    			.getBytes(HttpStreams.ASCII);
+    	List<String> header = HttpStreams.responseHeader(prometheus ? "text/plain; version=0.0.4" :
+    			"application/json", body.length);
+    	header.add("Cache-Control: no-store");
+    	HttpStreams.writeHeader(out, header);
+    	out.write(body);
+    }
 
-		for (String cacheAddr: sd.cacheAddresses) {
+    /*
+     * Servers data from peers or makes GET request. Peers whose digest may
+     * hold the url are ranked by how fast they have been answering, leaving
+     * out those behind an open circuit breaker or slower than the web server.
+     * A url that only one of them may hold is asked for from that peer
+     * straight away. When several may hold it, all of them are asked at once
+     * whether they do, and those that say YES first serve the data. The
+     * source is used once every peer has answered NO or the peer timeout has
+     * passed.
+     */
+    public boolean localCacheMiss(final String url, String request, OutputStream out)
+    		throws IOException {
+    	if (CacheConfig.OWNERSHIP) {
+    		return ownerFetch(url, request, out);
+    	}
+
+    	List<String> candidates = new ArrayList<String>();
+		for (String cacheAddr: sd.membership.caches()) {
 			// skip your own address
 			if (cacheAddr.compareTo(ip + ":" + port) == 0) {
 				continue;
 			}
-			String remoteIp = cacheAddr.split(":")[0];
-			int remotePort = Integer.parseInt(cacheAddr.split(":")[1]);
-
-			String peerDataContentType = checkPeersCache(remoteIp, remotePort, url);
-			if (peerDataContentType == null) {
+			// skip peers whose digest rules the url out
+			if (!sd.digests.mightHave(cacheAddr, url)) {
 				continue;
 			}
+			candidates.add(cacheAddr);
+		}
+		candidates = sd.health.rank(candidates);
 
-			response = distributedCacheHit(remoteIp, remotePort, url, peerDataContentType);
-
+		List<String> holders = candidates;
+		if (candidates.size() > 1) {
+			holders = holders(url, candidates);
+		}
+		if (!holders.isEmpty() && hedgedPeerGet(holders, url, request, out)) {
+			return true;
 		}
 
 		// GET request if no peers have cached data
-		if (response == null) {
-			response = getRequest(url, request);
+		return getRequest(url, request, out);
+    }
+
+    /*
+     * The peers that say they hold url, in the order they answered. Waits
+     * for the first YES and takes any others already in.
+     */
+    private List<String> holders(final String url, List<String> candidates) {
+    	CompletionService<String> lookups = new ExecutorCompletionService<String>(peerLookups);
+    	List<Future<String>> pending = new ArrayList<Future<String>>();
+    	for (final String cacheAddr: candidates) {
+    		if (!sd.health.allowed(cacheAddr)) {
+    			continue;
+    		}
+			pending.add(lookups.submit(new Callable<String>() {
+				public String call() {
+					return checkPeersCache(cacheAddr, url) ? cacheAddr : null;
+				}
+			}));
+    	}
+
+		List<String> holders = new ArrayList<String>();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CacheConfig.PEER_TIMEOUT);
+		for (int answered = 0; answered < pending.size(); answered++) {
+			long wait = holders.isEmpty() ? deadline - System.nanoTime() : 0;
+			Future<String> answer = null;
+			try {
+				answer = wait > 0 ? lookups.poll(wait, TimeUnit.NANOSECONDS) : lookups.poll();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (answer == null) {
+				if (holders.isEmpty()) {
+					System.out.println(">>> PEER DEADLINE: " + (pending.size() - answered) +
+							" peers did not answer");
+				}
+				break;
+			}
+			try {
+				String holder = answer.get();
+				if (holder != null) {
+					holders.add(holder);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+		}
+		// first hit wins, stop waiting on the rest
+		for (Future<String> lookup: pending) {
+			lookup.cancel(true);
 		}
-		return response;
+		return holders;
     }
 
-    /* Returns content type or null if peer doesn't have it */
-    public String checkPeersCache(String remoteIp, int remotePort, String url) {
-    	String queryCacheAddr = remoteIp + ":" + remotePort;
-        Socket socket = null;
-        PrintWriter out = null;
-        BufferedReader in = null;
-        String contentType = null;
+    /* Returns true if the peer has the url cached or is fetching it */
+    public boolean checkPeersCache(String cacheAddr, String url) {
 		try {
-			socket = new Socket(remoteIp, remotePort);
-	        out = new PrintWriter(socket.getOutputStream());
-	        in = new BufferedReader( new InputStreamReader(socket.getInputStream()));
-
-	        // ask if peer has cached data
-	        out.println("QUERY " + url + "\r\n");
-	        out.flush();
-			String hasCachedData = in.readLine();
-			if (hasCachedData == null) {
-				System.out.println(">>> PEER TIMEOUT: " + remoteIp + ":" + remotePort);
-				return contentType;
-			} else if (hasCachedData.startsWith("NO")) {
-				System.out.println(">>> PEER CACHE MISS: " + queryCacheAddr);
-				return contentType;
+			String[] answer = sd.peerLink(cacheAddr).lookup(url, CacheConfig.PEER_TIMEOUT);
+			// only a body's time to first byte is timed
+			sd.health.answered(cacheAddr);
+			if (answer == null) {
+				System.out.println(">>> PEER CACHE MISS: " + cacheAddr);
+				return false;
 			}
-			contentType = hasCachedData.split(" ")[1];
-		} catch (UnknownHostException e) {
-			System.err.println("Don't know about host " + queryCacheAddr);
+			return true;
 		} catch (IOException e) {
-			System.err.println("Couldn't get I/O for the connection to " +
-					queryCacheAddr);
-		} finally {
-			try {
-        		if (in != null) in.close();
-        		if (out != null) out.close();
-				if (socket != null && !socket.isClosed()) socket.close();
-			} catch (IOException e) {}
+			if (Thread.currentThread().isInterrupted()) {
+				// another peer answered first, this one hasn't failed
+				return false;
+			}
+			System.out.println(">>> PEER TIMEOUT: " + cacheAddr + " (" + e.getMessage() + ")");
+			sd.health.failure(cacheAddr);
+			sd.membership.failed(cacheAddr);
+			return false;
 		}
-		return contentType;
     }
 
-    public String distributedCacheHit(String remoteIp, int remotePort, String url, String contentType) {
-    	String cacheAddr = remoteIp + ":" + remotePort;
-		String newRequest = craftRequest(cacheAddr, url);
-		System.out.println(">>> PEER CACHE HIT: " + cacheAddr);
+    /*
+     * Ownership mode: the url's owner fetches it from the web server and keeps
+     * the only copy, so a miss here is forwarded to the owner and not cached.
+     * Forwarded requests are never forwarded again, and an owner behind an
+     * open circuit breaker is skipped.
+     */
+    public boolean ownerFetch(String url, String request, OutputStream out) throws IOException {
+    	String owner = RendezvousHash.owner(url, sd.membership.caches());
+    	if (owner != null && !owner.equals(sd.cacheAddress) && !request.contains(FORWARDED + ":") &&
+    			sd.health.allowed(owner)) {
+    		System.out.println(">>> OWNER: " + owner);
+    		if (peerGet(owner, url, request, out, true)) {
+    			return true;
+    		}
+    		System.out.println(">>> OWNER UNREACHABLE: " + owner + " --> GET");
+    	}
+    	return getRequest(url, request, out);
+    }
 
-		long peerFetchTime = System.currentTimeMillis();
-		// get cached data from peer
-		Socket socket = null;
+    public boolean distributedCacheHit(String cacheAddr, String url, String request, OutputStream out)
+    		throws IOException {
+    	List<String> holders = new ArrayList<String>();
+    	holders.add(cacheAddr);
+    	return hedgedPeerGet(holders, url, request, out);
+    }
+
+    /*
+     * Asks a peer for the url over its link and streams the answer to our
+     * client. A plain request is only answered if the peer holds the url, and
+     * the body is cached here. A fetch has the peer get the url like any
+     * client would, and isn't cached. Returns false if the peer sent nothing.
+     */
+    private boolean peerGet(String cacheAddr, String url, String request, OutputStream out, boolean fetch)
+    		throws IOException {
+		long start = System.nanoTime();
+		PeerLink.Call call = null;
 		try {
-			socket = new Socket(remoteIp, remotePort);
-		}  catch (UnknownHostException e) {
-			System.err.println("Don't know about host " + cacheAddr);
+			call = sd.peerLink(cacheAddr).get(url, fetch);
+			// a fetch may wait on the web server
+			if (!call.await(fetch ? CacheConfig.COALESCE_WAIT : CacheConfig.PEER_TIMEOUT)) {
+				System.out.println(">>> PEER CACHE MISS: " + cacheAddr);
+				sd.metrics.peer(cacheAddr).misses.increment();
+				return false;
+			}
 		} catch (IOException e) {
-			System.err.println("Couldn't get I/O for the connection to " + cacheAddr);
+			peerFailed(cacheAddr, e);
+			return false;
+		} finally {
+			if (call != null && !call.answered()) {
+				call.close();
+			}
 		}
+		return servePeerAnswer(cacheAddr, call, url, request, out, !fetch, start);
+    }
+
+    /*
+     * Gets url from the first of holders, peers that may have it. If that
+     * peer hasn't started to answer by its hedge delay, the next holder, or
+     * the web server when there is none, is asked too and the first to
+     * answer is used; the other request is cancelled. Returns false if
+     * nothing was sent.
+     */
+    private boolean hedgedPeerGet(List<String> holders, String url, String request, OutputStream out)
+    		throws IOException {
+    	// the first holder whose breaker lets it be asked
+    	int next = 0;
+    	while (next < holders.size() && !sd.health.allowed(holders.get(next))) {
+    		next++;
+    	}
+    	if (next == holders.size()) {
+    		return false;
+    	}
+    	Semaphore bell = new Semaphore(0);
+    	String[] peers = new String[2];
+    	peers[0] = holders.get(next++);
+    	long start = System.nanoTime();
+    	long deadline = start + TimeUnit.MILLISECONDS.toNanos(CacheConfig.PEER_TIMEOUT);
+    	long hedgeAt = CacheConfig.HEDGE_PERCENTILE <= 0 ? Long.MAX_VALUE :
+    			start + TimeUnit.MILLISECONDS.toNanos(sd.health.hedgeDelay(peers[0]));
+
+    	PeerLink.Call[] calls = new PeerLink.Call[2];
+    	long[] started = new long[2];
+    	OriginHedge origin = null;
+    	boolean hedged = false;
+    	calls[0] = startCall(peers[0], url, bell);
+    	started[0] = start;
+    	try {
+    		while (true) {
+    			for (int i = 0; i < 2; i++) {
+    				if (calls[i] == null || !calls[i].answered()) {
+    					continue;
+    				}
+    				PeerLink.Call call = calls[i];
+    				calls[i] = null;
+    				try {
+    					if (call.await(0)) {
+    						if (hedged) {
+    							System.out.println(">>> HEDGE: " + peers[i] + " answered first");
+    						}
+    						return servePeerAnswer(peers[i], call, url, request, out, true, started[i]);
+    					}
+    					System.out.println(">>> PEER CACHE MISS: " + peers[i]);
+    					sd.metrics.peer(peers[i]).misses.increment();
+    				} catch (IOException e) {
+    					peerFailed(peers[i], e);
+    				}
+    				call.close();
+    			}
+    			if (origin != null && origin.done()) {
+    				OriginResponse response = origin.take();
+    				origin = null;
+    				if (response != null) {
+    					System.out.println(">>> HEDGE: web server answered first");
+    					relayOrigin(url, request, response, out, null, start);
+    					return true;
+    				}
+    			}
+    			if (calls[0] == null && calls[1] == null && origin == null) {
+    				return false;
+    			}
+
+    			long now = System.nanoTime();
+    			if (!hedged && now >= hedgeAt) {
+    				hedged = true;
+    				for (; next < holders.size() && calls[1] == null; next++) {
+    					if (sd.health.allowed(holders.get(next))) {
+    						peers[1] = holders.get(next);
+    						started[1] = now;
+    						calls[1] = startCall(peers[1], url, bell);
+    					}
+    				}
+    				if (calls[1] == null) {
+    					origin = new OriginHedge(url, bell);
+    					peerLookups.execute(origin);
+    				}
+    				System.out.println(">>> HEDGE: " + peers[0] + " slow, asking " +
+    						(calls[1] != null ? peers[1] : "the web server"));
+    				continue;
+    			}
+    			if (now >= deadline) {
+    				// peers that haven't answered by now have failed
+    				for (int i = 0; i < 2; i++) {
+    					if (calls[i] != null) {
+    						peerFailed(peers[i], new IOException("No answer from " + peers[i]));
+    						calls[i].close();
+    						calls[i] = null;
+    					}
+    				}
+    				if (origin == null) {
+    					return false;
+    				}
+    			}
+    			long wake = origin != null && now >= deadline ?
+    					now + TimeUnit.MILLISECONDS.toNanos(CacheConfig.COALESCE_WAIT) :
+    					Math.min(hedged ? deadline : hedgeAt, deadline);
+    			try {
+    				if (!bell.tryAcquire(Math.max(0, wake - now), TimeUnit.NANOSECONDS) &&
+    						origin != null && now >= deadline) {
+    					// the web server never answered either
+    					return false;
+    				}
+    			} catch (InterruptedException e) {
+    				Thread.currentThread().interrupt();
+    				return false;
+    			}
+    		}
+    	} finally {
+    		for (PeerLink.Call call: calls) {
+    			if (call != null) {
+    				call.close();
+    			}
+    		}
+    		if (origin != null) {
+    			origin.abandon();
+    		}
+    	}
+    }
+
+    /* A GET to the peer rung on bell, or null if the peer can't be reached */
+    private PeerLink.Call startCall(String cacheAddr, String url, Semaphore bell) {
+    	try {
+    		PeerLink.Call call = sd.peerLink(cacheAddr).get(url, false);
+    		call.ring(bell);
+    		return call;
+    	} catch (IOException e) {
+    		peerFailed(cacheAddr, e);
+    		return null;
+    	}
+    }
 
-		String response = null;
-		PrintWriter out = null;
-		BufferedReader in = null;
+    /* Streams the response of a peer that has started to answer */
+    private boolean servePeerAnswer(String cacheAddr, PeerLink.Call call, String url, String request,
+    		OutputStream out, boolean cache, long start) throws IOException {
+    	Metrics.Peer stats = sd.metrics.peer(cacheAddr);
+    	long written = HttpStreams.written(out);
+    	sd.health.success(cacheAddr, System.nanoTime() - start);
 		try {
-			out = new PrintWriter(socket.getOutputStream());
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			out.println(newRequest);
-			out.flush();
-
-			int c;
-			StringBuilder sb = new StringBuilder();
-			while ((c = in.read()) != -1) {
-			    sb.append((char)c) ;
+			List<String> header = HttpStreams.readHeader(call);
+			if (header == null) {
+				peerFailed(cacheAddr, new IOException("Empty answer"));
+				return false;
 			}
-//			String body = sb.toString();
-			response = sb.toString();
-			peerFetchTime = System.currentTimeMillis() - peerFetchTime;
-			System.out.println("===== PEER FETCH TIME: " + peerFetchTime + " ms for " + url + " =====");
-//			cacheData(url, contentType, body);
-			cacheData(url, contentType, response);
-
-			// needed for Firefox but not Chrome
-//			StringBuffer output = new StringBuffer();
-//			output.append("HTTP/1.1 200 Document Follows\r\n");
-//			output.append("Content-Type: " + contentType + "\r\n");
-//			output.append("Content-Length: " + body.length() + "\r\n");
-//			output.append("\r\n");
-//			output.append(body);
-//			response = output.toString();
-
-		} catch (IOException e) {
-			e.printStackTrace();
+			if (!relayPeerAnswer(url, request, header, call, out, cache)) {
+				return false;
+			}
+			System.out.println(">>> PEER CACHE HIT: " + cacheAddr);
+			stats.hits.increment();
+			stats.latency.since(start);
+			sd.metrics.peer.record(start, HttpStreams.written(out) - written);
+			return true;
 		} finally {
-			if (out != null) out.close();
-			try {
-				if (in != null) in.close();
-			} catch (IOException e) {}
+			call.close();
 		}
-		return response;
     }
 
-    /* Serves data from local cache or calles localCacheMiss */
-	public String fetchResponseForClient(String url, String request) {
-    	// metadata = [fileName, contentType]
-    	String response = "";
-    	long localFetchTime = System.currentTimeMillis();
+    /*
+     * Sends on a peer's answer whose header has been read, cached here if
+     * cache. A body the peer offered by a hash held here isn't read; the copy
+     * held is served instead. A null out only updates the cache. Returns
+     * false if nothing was sent.
+     */
+    private boolean relayPeerAnswer(String url, String request, List<String> header, PeerLink.Call call,
+    		OutputStream out, boolean cache) throws IOException {
+		String offered = call.offered();
+		String[] adopted = cache && offered != null ? adopt(url, header, offered) : null;
+		if (adopted == null) {
+			craftResponse(url, request, header, call, out, cache, null);
+			return true;
+		}
+		// we hold these bytes for another url, the rest of the answer isn't needed
+		call.close();
+		sd.metrics.offersTaken.increment();
+		sd.metrics.offeredBytesSkipped.add(Long.parseLong(adopted[2]));
+		System.out.println(">>> PEER OFFER: " + url + " is " + offered + ", held here");
+		return out == null || serveCached(url, adopted, request, out);
+    }
+
+    /*
+     * Pulls a url that a peer says is hot there from that peer, on another
+     * thread, unless it is cached here or being fetched already. Only a live
+     * cache this one already has a link to is pulled from, so a HOT frame
+     * can't make it connect anywhere else.
+     */
+    public void pullHot(final String cacheAddr, final String url) {
+    	if (cacheAddr == null || url == null || cacheAddr.equals(sd.cacheAddress) ||
+    			!sd.membership.caches().contains(cacheAddr) || sd.cache.containsKey(url)) {
+    		return;
+    	}
+    	final PeerLink link = sd.peerLinks.get(cacheAddr);
+    	if (link == null) {
+    		return;
+    	}
+    	final InFlight mine = new InFlight();
+    	if (sd.inFlight.putIfAbsent(url, mine) != null) {
+    		return;
+    	}
+    	peerLookups.execute(new Runnable() {
+    		public void run() {
+    			String request = "GET /" + url + " HTTP/1.1\r\nAccept-Encoding: " + Compression.PEER_ACCEPT;
+    			PeerLink.Call call = null;
+    			try {
+    				call = link.get(url, false);
+    				List<String> header = call.await(CacheConfig.PEER_TIMEOUT) ? HttpStreams.readHeader(call) : null;
+    				if (header != null && relayPeerAnswer(url, request, header, call, null, true)) {
+    					sd.replicator.pulled.increment();
+    					System.out.println(">>> REPLICATED: " + url + " from " + cacheAddr);
+    				}
+    			} catch (IOException e) {
+    				System.err.println("Unable to replicate " + url + ": " + e.getMessage());
+    			} finally {
+    				if (call != null) {
+    					call.close();
+    				}
+    				if (!mine.handedOff()) {
+    					sd.inFlight.remove(url, mine);
+    				}
+    				mine.end();
+    			}
+    		}
+    	});
+    }
+
+    /*
+     * Caches url, answered by a peer that offered its body by hash, as the
+     * body held here with that hash. Returns its metadata, or null if no such
+     * body is held.
+     */
+    private String[] adopt(String url, List<String> header, String hash) {
+    	long length = HttpStreams.contentLength(header);
+    	if (HttpStreams.statusCode(header) != 200 || length < 0 || !Freshness.storable(header)) {
+    		return null;
+    	}
+    	String[] metadata = metadataFor(url, header);
+    	try {
+    		if (sd.disk.adopt(url, metadata, hash, length,
+    				HttpStreams.headerBytes(Freshness.header(metadata, length)))) {
+    			return metadata;
+    		}
+    	} catch (IOException e) {
+    		System.err.println("Unable to cache data: " + e.getMessage());
+    	}
+    	return null;
+    }
+
+    private void peerFailed(String cacheAddr, IOException e) {
+		sd.metrics.peer(cacheAddr).errors.increment();
+		sd.health.failure(cacheAddr);
+		sd.membership.failed(cacheAddr);
+		System.err.println("Couldn't get I/O for the link to " + cacheAddr + ": " + e.getMessage());
+    }
+
+    /* A web server fetch racing a slow peer, opened on another thread */
+    private class OriginHedge implements Runnable {
+    	private final String url;
+    	private final Semaphore bell;
+    	// guarded by this
+    	private boolean done;
+    	private boolean lost;
+    	private OriginResponse response;
+
+    	OriginHedge(String url, Semaphore bell) {
+    		this.url = url;
+    		this.bell = bell;
+    	}
+
+    	public void run() {
+    		OriginResponse opened = openOrigin(url, null);
+    		synchronized (this) {
+    			done = true;
+    			if (!lost) {
+    				response = opened;
+    				opened = null;
+    			}
+    		}
+    		if (opened != null) {
+    			sd.origins.release(opened.connection, false);
+    		}
+    		bell.release();
+    	}
+
+    	synchronized boolean done() {
+    		return done;
+    	}
+
+    	synchronized OriginResponse take() {
+    		OriginResponse taken = response;
+    		response = null;
+    		return taken;
+    	}
+
+    	/* The peer won; a response that comes anyway is dropped */
+    	void abandon() {
+    		OriginResponse left;
+    		synchronized (this) {
+    			lost = true;
+    			left = response;
+    			response = null;
+    		}
+    		if (left != null) {
+    			sd.origins.release(left.connection, false);
+    		}
+    	}
+    }
+
+    /*
+     * Answers a peer's GET. A plain request is served only from the cache,
+     * as metadata the caller looked up, or a fill in progress; a fetch is
+     * handled like a client's request, without being forwarded again.
+     * Returns false if nothing was sent.
+     */
+    public boolean servePeer(String url, boolean fetch, String[] metadata, OutputStream out)
+    		throws IOException {
+    	// peers take bodies as they are stored
+    	String request = "GET /" + url + " HTTP/1.1\r\nAccept-Encoding: " + Compression.PEER_ACCEPT;
+    	if (fetch) {
+    		return fetchResponseForClient(url, request + "\r\n" + FORWARDED + ": peer", out);
+    	}
+    	if (metadata != null && Freshness.fresh(metadata, System.currentTimeMillis()) &&
+    			serveCached(url, metadata, request, out)) {
+    		return true;
+    	}
+    	InFlight flight = sd.inFlight.get(url);
+    	CacheFill fill = flight == null ? null : flight.fill();
+    	return fill != null && fill.follow(request, out);
+    }
+
+    /*
+     * Serves data from local cache or calles localCacheMiss. Returns false if
+     * nothing could be sent to the client.
+     */
+	public boolean fetchResponseForClient(String url, String request, OutputStream out)
+			throws IOException {
+    	// metadata = [fileName, contentType, size, storedAt, expires, staleWindow, etag, lastModified,
+    	//             encoding, identitySize]
     	String[] metadata = sd.cache.get(url);
     	if (metadata == null) {
-    		System.out.println(">>> LOCAL CACHE MISS --> distributed GET");
-    		return localCacheMiss(url, request);
+    		NegativeCache.Entry failed = sd.negative.get(url, host(url));
+    		if (failed != null) {
+    			System.out.println(">>> NEGATIVE HIT: " + url);
+    			return failed.replay(out);
+    		}
+    		return coalescedMiss(url, request, out, null);
+    	}
+    	long now = System.currentTimeMillis();
+    	if (!Freshness.fresh(metadata, now)) {
+    		if (Freshness.staleUsable(metadata, now) && serveCached(url, metadata, request, out)) {
+    			System.out.println(">>> STALE HIT --> revalidating in the background");
+    			revalidateLater(url, request);
+    			return true;
+    		}
+    		System.out.println(">>> STALE --> revalidating");
+    		return coalescedMiss(url, request, out, metadata);
+    	}
+    	if (serveCached(url, metadata, request, out)) {
+    		return true;
+    	}
+    	System.out.println(">>> Cached data file not found --> distributed GET");
+    	return localCacheMiss(url, request, out);
+    }
+
+    /*
+     * Sends a cached url from memory or disk, compressed as it is stored
+     * unless the request doesn't accept that. Returns false if its file is
+     * gone.
+     */
+    private boolean serveCached(String url, String[] metadata, String request, OutputStream out)
+    		throws IOException {
+    	long start = System.nanoTime();
+    	long written = HttpStreams.written(out);
+    	boolean decode = metadata[8] != null && !Compression.accepts(request, metadata[8]);
+    	sd.disk.touch(url);
+    	sd.replicator.served(url);
+    	MemoryTier.Entry hot = sd.memory.get(url);
+    	if (hot != null) {
+    		if (decode) {
+    			Compression.sendDecoded(metadata, new ByteArrayInputStream(hot.body), out);
+    		} else {
+    			out.write(hot.header);
+    			out.write(hot.body);
+    		}
+    		sd.metrics.memory.record(start, HttpStreams.written(out) - written);
+    		System.out.println(">>> MEMORY CACHE HIT");
+    		return true;
     	}
 
-    	BufferedReader br = null;
+    	File file = new File(metadata[0]);
+    	FileInputStream body = null;
     	try {
-			br = new BufferedReader(new FileReader(metadata[0]));
+    		body = new FileInputStream(file);
 		} catch (FileNotFoundException e) {
-			System.out.println(">>> Cached data file not found --> distributed GET");
-			return localCacheMiss(url, request);
+			sd.disk.lost(url, metadata);
+			return false;
 		}
 
-		int c;
-		StringBuilder sb = new StringBuilder();
 		try {
-			while ((c = br.read()) != -1) {
-			    sb.append((char)c) ;
+			FileChannel channel = body.getChannel();
+			long length = channel.size();
+			byte[] header = sd.disk.header(url, metadata, length);
+			if (length <= sd.memory.maxObject) {
+				// small enough for the memory tier, read it whole
+				byte[] data = new byte[(int) length];
+				new DataInputStream(body).readFully(data);
+				hot = new MemoryTier.Entry(header, data);
+				sd.memory.admit(url, hot);
+				if (decode) {
+					Compression.sendDecoded(metadata, new ByteArrayInputStream(hot.body), out);
+				} else {
+					out.write(hot.header);
+					out.write(hot.body);
+				}
+			} else if (decode) {
+				Compression.sendDecoded(metadata, body, out);
+			} else {
+				// straight from the file to the socket
+				out.write(header);
+				HttpStreams.transfer(channel, 0, length, out);
 			}
-		} catch (IOException e) {
-			System.out.println(">>> Error reading cached data --> distributed GET");
-			e.printStackTrace();
-			return localCacheMiss(url, request);
 		} finally {
 			try {
-				br.close();
+				body.close();
 			} catch (IOException e) {}
 		}
-		response = sb.toString();
-		localFetchTime = System.currentTimeMillis() - localFetchTime;
-		System.out.println("===== LOCAL FETCH TIME: " + localFetchTime + " ms for " + url + " =====");
+		sd.metrics.disk.record(start, HttpStreams.written(out) - written);
 		System.out.println(">>> LOCAL CACHE HIT");
-    	return response;
+    	return true;
     }
 
-	public void cacheData(String url, String contentType, String data) {
-		// metadata = [fileName, contentType]
-
-        String fileName = url.replaceAll("[ \t\n\r/]", "-");
-        String[] metadata = new String[]{fileName, contentType};
-        System.out.println(">>> SAVE: " + url + " -> [" + fileName + ", " + contentType + "]");
+	/*
+	 * Only one request fetches a missing url, or revalidates a stale one, at a
+	 * time. Later requests for it wait for that fetch to start caching the
+	 * body and stream the body as it is written, or fetch it themselves if
+	 * the fetch caches nothing.
+	 */
+	private boolean coalescedMiss(String url, String request, OutputStream out, String[] stale)
+			throws IOException {
+		InFlight mine = new InFlight();
+		InFlight leader = sd.inFlight.putIfAbsent(url, mine);
+		if (leader != null) {
+			long start = System.nanoTime();
+			long written = HttpStreams.written(out);
+			CacheFill fill = leader.await(CacheConfig.COALESCE_WAIT);
+			if (fill != null && fill.follow(request, out)) {
+				sd.metrics.coalesced.record(start, HttpStreams.written(out) - written);
+				System.out.println(">>> COALESCED with fetch in flight");
+				return true;
+			}
+			if (sd.cache.containsKey(url)) {
+				return fetchResponseForClient(url, request, out);
+			}
+			// the leader's fetch failed and was remembered
+			NegativeCache.Entry failed = sd.negative.get(url, host(url));
+			if (failed != null) {
+				System.out.println(">>> NEGATIVE HIT: " + url);
+				return failed.replay(out);
+			}
+			System.out.println(">>> LOCAL CACHE MISS --> distributed GET");
+			return localCacheMiss(url, request, out);
+		}
 
-		PrintWriter writer;
 		try {
-			writer = new PrintWriter(metadata[0]);
-		} catch (FileNotFoundException e) {
-			System.err.println("File Not Found. Unable to cache data.");
+			if (stale != null) {
+				return revalidate(url, request, out, stale);
+			}
+			System.out.println(">>> LOCAL CACHE MISS --> distributed GET");
+			return localCacheMiss(url, request, out);
+		} finally {
+			if (!mine.handedOff()) {
+				sd.inFlight.remove(url, mine);
+			}
+			mine.end();
+		}
+	}
+
+	/*
+	 * Asks the web server whether a stale copy is still good. A 304 refreshes
+	 * the copy, which is then served; anything else replaces it. The stale
+	 * copy is served if the web server can't be reached.
+	 */
+	private boolean revalidate(String url, String request, OutputStream out, String[] stale)
+			throws IOException {
+		sd.metrics.revalidations.increment();
+		if (getRequest(url, request, out, stale)) {
+			return true;
+		}
+		if (serveCached(url, stale, request, out)) {
+			System.out.println(">>> REVALIDATION FAILED --> serving stale copy");
+			return true;
+		}
+		return localCacheMiss(url, request, out);
+	}
+
+	/* Revalidates a url on another thread, unless it is already being fetched */
+	private void revalidateLater(final String url, final String request) {
+		final InFlight mine = new InFlight();
+		if (sd.inFlight.putIfAbsent(url, mine) != null) {
 			return;
 		}
+		peerLookups.execute(new Runnable() {
+			public void run() {
+				try {
+					String[] stale = sd.cache.get(url);
+					if (stale != null) {
+						// no client, a new body only goes to the cache
+						sd.metrics.revalidations.increment();
+						getRequest(url, request, null, stale);
+					}
+				} catch (IOException e) {
+					System.err.println("Unable to revalidate " + url + ": " + e.getMessage());
+				} finally {
+					if (!mine.handedOff()) {
+						sd.inFlight.remove(url, mine);
+					}
+					mine.end();
+				}
+			}
+		});
+	}
+
+	/* Starts caching the body of url, written to disk in the background */
+	public CacheFill cacheData(String url, List<String> header, long length) {
+		String[] metadata = metadataFor(url, header);
+        System.out.println(">>> SAVE: " + url + " -> [" + metadata[0] + ", " + metadata[1] + "]");
 
-		writer.write(data);
-		writer.close();
+		CacheFill fill = new CacheFill(sd, url, metadata, length);
+		// let requests waiting on this url follow the fill
+		InFlight flight = sd.inFlight.get(url);
+		if (flight != null) {
+			flight.attach(fill);
+		}
+		return fill;
+	}
 
-		sd.cache.put(url, metadata);
+	/* The metadata of a response to cache, its body not yet stored */
+	private String[] metadataFor(String url, List<String> header) {
+		// metadata = [fileName, contentType, size, storedAt, expires, staleWindow, etag, lastModified,
+		//             encoding, identitySize]
+		String contentType = HttpStreams.headerValue(header, "Content-Type");
+        String fileName = sd.disk.fileFor(url);
+        String[] metadata = new String[]{fileName, contentType, null, null, null, null, null, null,
+        		null, null};
+        Freshness.stamp(metadata, header, System.currentTimeMillis());
+        String encoding = HttpStreams.headerValue(header, "Content-Encoding");
+        if (Compression.supported(encoding)) {
+        	// arrived compressed, a peer says how large it is decompressed
+        	metadata[8] = encoding.toLowerCase();
+        	metadata[9] = HttpStreams.headerValue(header, Compression.IDENTITY_LENGTH);
+        }
+        return metadata;
 	}
 
-	/* Sends a GET request to website and returns the response */
-    public String getRequest(String url, String originalRequest) {
-    	String response = null;
+	/*
+	 * Sends a GET request to website and streams the response to the client.
+	 * Returns false if the website could not be reached.
+	 */
+    public boolean getRequest(String url, String originalRequest, OutputStream out)
+    		throws IOException {
+    	return getRequest(url, originalRequest, out, null);
+    }
+
+    /*
+     * As above, made conditional on the validators of a stale cached copy
+     * when there is one. A null out only updates the cache.
+     */
+    private boolean getRequest(String url, String originalRequest, OutputStream out, String[] stale)
+    		throws IOException {
+    	long start = System.nanoTime();
+    	OriginResponse response = openOrigin(url, stale);
+    	if (response == null) {
+    		return false;
+    	}
+    	relayOrigin(url, originalRequest, response, out, stale, start);
+    	return true;
+    }
+
+    /* A web server's response whose header has been read */
+    private static class OriginResponse {
+    	final OriginPool.Connection connection;
+    	final List<String> header;
+
+    	OriginResponse(OriginPool.Connection connection, List<String> header) {
+    		this.connection = connection;
+    		this.header = header;
+    	}
+    }
+
+    /*
+     * Sends the request for url to its web server and reads the response
+     * header. Returns null if the website could not be reached.
+     */
+    private OriginResponse openOrigin(String url, String[] stale) {
     	URLParser urlParser = new URLParser(url);
     	if (!urlParser.valid) {
     		urlParser = new URLParser("http://" + url);
     		if (!urlParser.valid) {
     			System.err.println("Invalid url: " + url);
-    			return response;
+    			return null;
     		}
     	}
     	System.out.println(">>> GET " + url);
-    	String request = craftRequest(urlParser.domain, urlParser.resource);
-    	long sourceFetchTime = System.currentTimeMillis();
-        Socket socket = null;
+    	String host = urlParser.domain;
+    	int hostPort = 80;
+    	int colon = host.lastIndexOf(':');
+    	if (colon != -1) {
+    		try {
+    			hostPort = Integer.parseInt(host.substring(colon + 1));
+    			host = host.substring(0, colon);
+    		} catch (NumberFormatException e) { }
+    	}
+    	String conditional = stale == null ? "" : Freshness.validators(stale);
+    	byte[] request = craftRequest(urlParser.domain, urlParser.resource, true, conditional)
+    			.getBytes(HttpStreams.ASCII);
+    	long start = System.nanoTime();
+
+    	// a pooled connection may have been closed by the server while idle,
+    	// so a request that fails on one is tried again on a new connection
+    	OriginPool.Connection connection = null;
+        List<String> header = null;
+        for (int attempt = 0; attempt < 2 && header == null; attempt++) {
+        	try {
+        		connection = sd.origins.acquire(host, hostPort);
+        	} catch (UnknownHostException e) {
+        		System.err.println("Don't know about host " + urlParser.domain);
+        		share(sd.negative.hostFailed(urlParser.domain, NegativeCache.DNS));
+        		return null;
+        	} catch (IOException e) {
+        		System.err.println("Couldn't get I/O for the connection to " +
+        				urlParser.domain);
+        		if (e instanceof ConnectException) {
+        			share(sd.negative.hostFailed(urlParser.domain, NegativeCache.CONNECT));
+        		}
+        		return null;
+        	}
+        	try {
+        		connection.out.write(request);
+        		connection.out.flush();
+        		header = HttpStreams.readHeader(connection.in);
+        	} catch (IOException e) { }
+        	if (header == null) {
+        		sd.origins.release(connection, false);
+        		if (!connection.reused) {
+        			System.err.println("Couldn't get I/O for the connection to " +
+        					urlParser.domain);
+        			return null;
+        		}
+        	}
+        }
+        if (header == null) {
+        	return null;
+        }
+        sd.health.originAnswered(System.nanoTime() - start);
+        return new OriginResponse(connection, header);
+    }
+
+    /* The host[:port] of url, or null if it doesn't parse */
+    private static String host(String url) {
+    	URLParser urlParser = new URLParser(url);
+    	if (!urlParser.valid) {
+    		urlParser = new URLParser("http://" + url);
+    	}
+    	return urlParser.valid ? urlParser.domain : null;
+    }
+
+    /* Tells the live peers of a failure remembered here */
+    private void share(final byte[] negative) {
+    	if (negative == null) {
+    		return;
+    	}
+    	peerLookups.execute(new Runnable() {
+    		public void run() {
+    			for (String cacheAddr: sd.membership.caches()) {
+    				// no answer comes back, so this is no breaker trial
+    				if (!cacheAddr.equals(sd.cacheAddress) && !sd.health.open(cacheAddr)) {
+    					sd.peerLink(cacheAddr).share(negative);
+    				}
+    			}
+    		}
+    	});
+    }
+
+    /* Streams an opened web server response to the client, see craftResponse */
+    private void relayOrigin(String url, String request, OriginResponse response, OutputStream out,
+    		String[] stale, long start) throws IOException {
+    	long written = HttpStreams.written(out);
+        boolean reusable = false;
 		try {
-			socket = new Socket(urlParser.domain, 80);
-	        PrintWriter out = new PrintWriter(socket.getOutputStream());
-	        BufferedReader in = new BufferedReader(
-	            new InputStreamReader(socket.getInputStream()));
-
-			out.println(request);
-			out.flush();
-
-			int c;
-			StringBuilder sb = new StringBuilder();
-			while ((c = in.read()) != -1) {
-			    sb.append((char)c) ;
-			}
-			response = sb.toString();
-		} catch (UnknownHostException e) {
-			System.err.println("Don't know about host " + urlParser.domain);
-		} catch (IOException e) {
-			System.err.println("Couldn't get I/O for the connection to " +
-					urlParser.domain);
+			reusable = craftResponse(url, request, response.header, response.connection.in, out, true, stale);
 		} finally {
-			if (socket != null) {
-				try {
-					socket.close();
-				} catch (IOException e) {}
-			}
+			sd.origins.release(response.connection, reusable);
+		}
+		// a 304 is counted where the refreshed copy is served from
+		if (out != null && !(stale != null && HttpStreams.statusCode(response.header) == 304)) {
+			sd.metrics.origin.record(start, HttpStreams.written(out) - written);
 		}
-		sourceFetchTime = System.currentTimeMillis() - sourceFetchTime;
-		System.out.println("===== SOURCE FETCH TIME: " + sourceFetchTime + " ms for " + url + " =====");
-    	return craftResponse(url, response);
     }
 
-	private String craftRequest(String domain, String resource) {
+	private String craftRequest(String domain, String resource, boolean keepAlive, String extraLines) {
         if (!resource.startsWith("/")) {
             resource = "/" + resource;
         }
@@ -355,68 +1158,133 @@ public class ProxyCacheThread extends Thread {
 		StringBuffer output = new StringBuffer();
 		output.append("GET " + resource + " HTTP/1.1\r\n");
 		output.append("Host: " + domain + "\r\n");
-		output.append("Connection: close\r\n");
+		if (!keepAlive) {
+			output.append("Connection: close\r\n");
+		}
+		output.append(extraLines);
 		output.append("\r\n");
 		return output.toString();
 	}
 
+	/*
+	 * Streams a response whose header has been read to the client. The body of
+	 * a 200 goes out as it arrives, teed into the cache when asked to and the
+	 * response allows it, and decompressed if it came compressed in a way the
+	 * client doesn't accept; a 304 to a revalidation refreshes the stale copy and
+	 * serves it; any other response is relayed as it is and not cached, though
+	 * a failure coming from the web server is remembered by the negative cache.
+	 * Returns true if the body was read to its end and the connection can
+	 * carry another request.
+	 */
+	private boolean craftResponse(String url, String request, List<String> header, InputStream in,
+			OutputStream out, boolean cache, String[] stale) throws IOException {
+		String status = header.get(0);
+		String contentType = HttpStreams.headerValue(header, "Content-Type");
+		long length = HttpStreams.contentLength(header);
+		InputStream body = HttpStreams.body(header, in);
+		boolean reusable = HttpStreams.framed(header) && HttpStreams.keepAlive(header);
 
-	private String craftResponse(String url, String response) {
-		String body = null;
-//		String date = null;
-		String contentType = null;
-
-		// parse header
-        String[] buf = response.split("\r\n");
-        for (String line: buf) {
-        	if (line.trim().isEmpty()) {
-    			break;
-    		} else if (line.startsWith("HTTP")) {
-    			if (!line.contains("200 OK")) {
-    				System.out.println(">>> BAD REQUEST: " + line);
-    				return response;
-    			}
-    		} else if (line.startsWith("Content-Type: ")) {
-    			contentType = line.substring(14).trim();
-    		}
-//    		else if (line.startsWith("Date: ")) {
-//    			date = line.substring(6).trim();
-//    		}
-        }
-
-        // get body
-        int bodyPointer = response.indexOf("\r\n\r\n");
-        body = response.substring(bodyPointer).trim();
+		if (stale != null && HttpStreams.statusCode(header) == 304) {
+			HttpStreams.copy(body, HttpStreams.DISCARD, null, -1);
+			String[] refreshed = stale.clone();
+			Freshness.stamp(refreshed, header, System.currentTimeMillis());
+			if (!sd.disk.refresh(url, refreshed)) {
+				refreshed = stale;
+			}
+			sd.metrics.notModified.increment();
+			System.out.println(">>> NOT MODIFIED: " + url);
+			if (out != null && !serveCached(url, refreshed, request, out)) {
+				throw new IOException("Cached copy of " + url + " is gone");
+			}
+			return reusable;
+		}
+		if (out == null) {
+			out = HttpStreams.DISCARD;
+		}
 
-        cacheData(url, contentType, body);
+		if (!status.startsWith("HTTP") || HttpStreams.statusCode(header) != 200) {
+			System.out.println(">>> BAD REQUEST: " + status);
+			// the body is relayed decoded, so drop the origin's framing
+			List<String> relayed = new ArrayList<String>();
+			for (String line: header) {
+				if (!line.regionMatches(true, 0, "Transfer-Encoding:", 0, 18) &&
+						!line.regionMatches(true, 0, "Connection:", 0, 11)) {
+					relayed.add(line);
+				}
+			}
+			OutputStream client = HttpStreams.beginBody(out, relayed);
+			NegativeCache.Capture captured = new NegativeCache.Capture(client);
+			HttpStreams.copy(body, captured, null, -1);
+			HttpStreams.endBody(client);
+			if (cache) {
+				// not relayed from a peer, which remembers it itself
+				share(sd.negative.answered(url, relayed, captured.body()));
+			}
+			return reusable;
+		}
 
-		StringBuffer output = new StringBuffer();
-		output.append("HTTP/1.1 200 Document Follows\r\n");
-		output.append("Content-Type: " + contentType + "\r\n");
-		output.append("Content-Length: " + body.length() + "\r\n");
-		output.append("\r\n");
-		output.append(body);
-		return output.toString();
+		String encoding = HttpStreams.headerValue(header, "Content-Encoding");
+		if (encoding != null && encoding.equalsIgnoreCase("identity")) {
+			encoding = null;
+		}
+		if (!Freshness.storable(header) || (encoding != null && !Compression.supported(encoding))) {
+			cache = false;
+			if (stale != null) {
+				sd.disk.remove(url);
+			}
+		}
+		CacheFill fill = cache ? cacheData(url, header, length) : null;
+		try {
+			List<String> clientHeader = fill != null ? fill.header() :
+				HttpStreams.responseHeader(contentType, length);
+			if (fill == null && encoding != null) {
+				clientHeader.add("Content-Encoding: " + encoding);
+			}
+			if (encoding != null && Compression.supported(encoding) &&
+					!Compression.accepts(request, encoding.toLowerCase())) {
+				// store it compressed, send it decompressed
+				InputStream stored = fill != null ? HttpStreams.tee(body, fill) : body;
+				OutputStream client = HttpStreams.beginBody(out, fill != null ? fill.identityHeader() :
+						HttpStreams.responseHeader(contentType, -1));
+				HttpStreams.copy(Compression.decoder(encoding, stored), client, null, -1);
+				HttpStreams.copy(stored, HttpStreams.DISCARD, null, -1);
+				HttpStreams.endBody(client);
+			} else {
+				OutputStream client = HttpStreams.beginBody(out, clientHeader);
+				HttpStreams.copy(body, client, fill, -1);
+				HttpStreams.endBody(client);
+			}
+		} catch (IOException e) {
+			if (fill != null) {
+				fill.abort();
+			}
+			throw e;
+		}
+		if (fill != null) {
+			fill.commit();
+		}
+		return reusable;
 	}
 
-	public String formatURL(String request) {
-		String url = null;
-		String referrer = null;
-		String[] lines = request.split("\n");
-		for (String line: lines) {
-			line = line.trim();
-			if (line.isEmpty()) {
-				break;
-			}
-			if (line.startsWith("GET ")) {
-				String[] temp = line.split(" ");
-				url = temp[1].substring(1);
-			} else if (line.startsWith("Referer: ")) {
-				String[] temp = line.split(ip + ":" + port + "/");
-				referrer = temp[temp.length - 1];
-				break;
+	/*
+	 * The url a request is for, taken from its target, or from its Referer
+	 * when it is a page's relative link through the proxy. Null if there is
+	 * no target.
+	 */
+	public String formatURL(HttpRequest request) {
+		String target = request.target();
+		if (target == null || !target.startsWith("/")) {
+			return null;
+		}
+		String url = target.substring(1);
+		String referrer = request.header("Referer");
+		if (referrer != null) {
+			// the page's own url follows our address in the Referer
+			int at = referrer.lastIndexOf(self);
+			if (at != -1) {
+				referrer = referrer.substring(at + self.length());
 			}
- 		}
+		}
 		if (referrer != null) {
 			url = referrer + "/" + url;
 			lastReferrer = referrer;
@@ -0,0 +1,42 @@
+import java.util.Collection;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * Highest random weight (rendezvous) hashing of urls onto caches. Every
+ * cache scores each url against each cache address and the highest score
+ * owns the url, so all caches agree on an owner without coordinating, and a
+ * cache joining or leaving only moves the urls it wins or held, about 1/N.
+ *
+ */
+public class RendezvousHash {
+
+	/* Returns the address that owns the url, or null if there are none */
+	public static String owner(String url, Collection<String> cacheAddresses) {
+		long urlHash = CacheDigest.hash(url);
+		String owner = null;
+		long ownerScore = 0;
+		for (String cacheAddr: cacheAddresses) {
+			long score = score(urlHash, CacheDigest.hash(cacheAddr));
+			if (owner == null || Long.compareUnsigned(score, ownerScore) > 0 ||
+					(score == ownerScore && cacheAddr.compareTo(owner) < 0)) {
+				owner = cacheAddr;
+				ownerScore = score;
+			}
+		}
+		return owner;
+	}
+
+	/* murmur3 finalizer over the combined hashes */
+	private static long score(long urlHash, long cacheHash) {
+		long h = urlHash ^ (cacheHash * 0x9e3779b97f4a7c15L);
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
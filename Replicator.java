@@ -0,0 +1,191 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * Copies hot urls to the peers, so that a url everyone wants doesn't leave
+ * every other cache asking the one that holds it. Each request answered from
+ * the cache here, for a client or for a peer, counts toward its url's rate,
+ * a moving average over RATE_WINDOW. A request only adds to its url's
+ * counter, and this thread folds the counters into the averages once a
+ * SWEEP, so requests never wait on each other here. Once a url is asked for
+ * more than dcache.replicateRate times a second, it is announced in a HOT
+ * frame to the live peers whose digest says they don't hold it, and each
+ * pulls it with a plain GET unless it has it by then, storing it like any
+ * peer hit.
+ *
+ * A url is announced again at most once a REANNOUNCE. Announcements are
+ * paced by a token bucket holding a second of dcache.replicateBandwidth,
+ * each taking the size of the body it will have the peer pull, so the
+ * bytes replicated from here stay under that cap.
+ *
+ */
+public class Replicator extends Thread {
+
+	/* ms over which request rates are averaged */
+	private static final long RATE_WINDOW = 10000;
+	/* ms before a url is announced again */
+	private static final long REANNOUNCE = 60000;
+	/* ms between folding the counters into the averages */
+	private static final long SWEEP = 1000;
+	/* urls whose rate is kept; others aren't counted until a sweep drops cold ones */
+	private static final int TRACKED = 10000;
+	/* hot urls waiting to be announced */
+	private static final int BACKLOG = 1024;
+
+	/* Requests for a url, decaying over RATE_WINDOW */
+	private static class Rate {
+		final LongAdder requests = new LongAdder();
+		// only touched by this thread
+		double count;
+		long announced;
+	}
+
+	public final LongAdder announced = new LongAdder();
+	public final LongAdder pulled = new LongAdder();
+
+	private final ServiceDiscovery sd;
+	private final BlockingQueue<String> hot = new ArrayBlockingQueue<String>(BACKLOG);
+	private final ConcurrentHashMap<String, Rate> rates = new ConcurrentHashMap<String, Rate>();
+
+	// only touched by this thread
+	private double tokens = CacheConfig.REPLICATE_BANDWIDTH;
+	private long refilled = System.nanoTime();
+	private long swept = System.currentTimeMillis();
+
+	public Replicator(ServiceDiscovery sd) {
+		super("Replicator");
+		this.sd = sd;
+		setDaemon(true);
+	}
+
+	/* Counts a request for url answered from the cache */
+	public void served(String url) {
+		if (CacheConfig.REPLICATE_RATE <= 0) {
+			return;
+		}
+		Rate rate = rates.get(url);
+		if (rate == null) {
+			if (rates.size() >= TRACKED) {
+				return;
+			}
+			Rate added = new Rate();
+			rate = rates.putIfAbsent(url, added);
+			if (rate == null) {
+				rate = added;
+			}
+		}
+		rate.requests.increment();
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				long wait = swept + SWEEP - System.currentTimeMillis();
+				String url = wait > 0 ? hot.poll(wait, TimeUnit.MILLISECONDS) : null;
+				if (url != null) {
+					announce(url);
+				} else {
+					sweep();
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	/*
+	 * Folds each url's requests since the last sweep into its average,
+	 * queuing the hot ones and dropping those asked for less than once a
+	 * RATE_WINDOW.
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		double decay = Math.exp(-(double) (now - swept) / RATE_WINDOW);
+		swept = now;
+		Iterator<Map.Entry<String, Rate>> entries = rates.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String, Rate> entry = entries.next();
+			Rate rate = entry.getValue();
+			long requests = rate.requests.sumThenReset();
+			rate.count = rate.count * decay + requests;
+			if (requests == 0 && rate.count < 1) {
+				// a request counted since is lost, as the url is cold anyway
+				entries.remove();
+				continue;
+			}
+			if (rate.count * 1000 / RATE_WINDOW < CacheConfig.REPLICATE_RATE ||
+					(rate.announced != 0 && now - rate.announced < REANNOUNCE)) {
+				continue;
+			}
+			if (hot.offer(entry.getKey())) {
+				rate.announced = now;
+			}
+		}
+	}
+
+	/* Tells the peers that don't seem to hold url that it is hot */
+	private void announce(String url) throws InterruptedException {
+		// metadata = [fileName, contentType, size, storedAt, expires, staleWindow, etag, lastModified,
+		//             encoding, identitySize]
+		String[] metadata = sd.cache.get(url);
+		if (metadata == null || !Freshness.fresh(metadata, System.currentTimeMillis())) {
+			return;
+		}
+		long size;
+		try {
+			size = Long.parseLong(metadata[2]);
+		} catch (NumberFormatException e) {
+			return;
+		}
+		List<String> peers = new ArrayList<String>();
+		for (String cacheAddr: sd.membership.caches()) {
+			if (cacheAddr.equals(sd.cacheAddress) || sd.health.open(cacheAddr)) {
+				continue;
+			}
+			if (sd.digests.hasDigest(cacheAddr) && sd.digests.mightHave(cacheAddr, url)) {
+				continue;
+			}
+			peers.add(cacheAddr);
+		}
+		for (String cacheAddr: peers) {
+			take(size);
+			if (sd.peerLink(cacheAddr).hot(sd.cacheAddress, url)) {
+				announced.increment();
+				System.out.println(">>> HOT: " + url + " -> " + cacheAddr);
+			}
+		}
+	}
+
+	/*
+	 * Waits for bytes of tokens. A body larger than the bucket waits for a
+	 * full one and leaves it owing the rest, paid back as it refills.
+	 */
+	private void take(long bytes) throws InterruptedException {
+		long capacity = CacheConfig.REPLICATE_BANDWIDTH;
+		if (capacity <= 0) {
+			return;
+		}
+		double needed = Math.min(bytes, capacity);
+		while (true) {
+			long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - refilled) / 1e9 * capacity);
+			refilled = now;
+			if (tokens >= needed) {
+				tokens -= bytes;
+				return;
+			}
+			sleep(Math.max(1, (long) ((needed - tokens) * 1000 / capacity)));
+		}
+	}
+
+}
@@ -1,11 +1,10 @@
+import java.io.File;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.net.UnknownHostException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -22,20 +21,59 @@ public class ServiceDiscovery {
 	public static final int GROUP_PORT = 5353;
 
 	public int cachePort;
-	public HashMap<String, String[]> cache;  // url : [fileName, contentType]
+	// url : [fileName, contentType, size, storedAt, expires, staleWindow, etag, lastModified,
+	//        encoding, identitySize]
+	public CacheIndex cache;
 	public String cacheAddress;
-	public Set<String> cacheAddresses = new HashSet<String>();
+	public Membership membership;
+	public Announcer announcer;
+	public DigestThread digests;
+	public Replicator replicator;
+	public ConcurrentHashMap<String, InFlight> inFlight = new ConcurrentHashMap<String, InFlight>();
+	public OriginPool origins = new OriginPool(new DnsCache(CacheConfig.DNS_TTL, CacheConfig.DNS_ENTRIES),
+			CacheConfig.ORIGIN_IDLE, CacheConfig.ORIGIN_MAX_PER_HOST, CacheConfig.ORIGIN_CONNECT_TIMEOUT);
+	public NegativeCache negative = new NegativeCache(CacheConfig.NEGATIVE_ENTRIES);
+	public MemoryTier memory = new MemoryTier(CacheConfig.MEMORY_BYTES, CacheConfig.MEMORY_MAX_OBJECT);
+	public DiskStore disk;
+	public WriteBehind writes;
+	public Metrics metrics = new Metrics();
+	public PeerHealth health = new PeerHealth();
+	public ConcurrentHashMap<String, PeerLink> peerLinks = new ConcurrentHashMap<String, PeerLink>();
 
 	public ServiceDiscovery(int cachePort) throws UnknownHostException {
+		this(cachePort, new File(CacheConfig.CACHE_DIR));
+	}
+
+	/* A cache keeping its files in cacheDir, so several can share a machine */
+	public ServiceDiscovery(int cachePort, File cacheDir) throws UnknownHostException {
 		String ip = InetAddress.getLocalHost().getHostAddress();
 		this.cachePort = cachePort;
 		this.cacheAddress = ip + ":" + cachePort;
-		cacheAddresses.add(cacheAddress);
-		this.cache = new HashMap<String, String[]>();
+		this.disk = new DiskStore(this, cacheDir, CacheConfig.DISK_BYTES, CacheConfig.DISK_OBJECTS);
+		this.cache = CacheConfig.INDEX.equals("compact") ? new CompactCacheIndex(disk) : new MapCacheIndex();
+		this.writes = new WriteBehind(this, CacheConfig.IO_WORKERS, CacheConfig.WRITE_QUEUE_BYTES);
+		this.disk.load();
+		this.digests = new DigestThread(this);
+		this.replicator = new Replicator(this);
+		this.membership = new Membership(this);
+		this.announcer = new Announcer(this);
+	}
+
+	/* The link to a peer cache, connected when first used */
+	public PeerLink peerLink(String address) {
+		PeerLink link = peerLinks.get(address);
+		if (link == null) {
+			PeerLink created = new PeerLink(address);
+			link = peerLinks.putIfAbsent(address, created);
+			if (link == null) {
+				link = created;
+			}
+		}
+		return link;
 	}
 
 	/*
-	 * cs621-cache self_ip
+	 * cs621-cache self_ip [HEARTBEAT|LEAVING]
 	 */
 	public void parsePacket(DatagramPacket packet) {
 		String data = new String(packet.getData()).trim();
@@ -49,13 +87,19 @@ public class ServiceDiscovery {
 	    	return;
 	    }
 	    String sender = splitData[1];
-	    System.out.println("> FROM: " + packet.getAddress().getHostAddress() +
-	    		":" + packet.getPort() + ", DATA: " + data);
+	    String kind = splitData.length > 2 ? splitData[2] : null;
+	    if (Announcer.LEAVING.equals(kind)) {
+	    	membership.leaving(sender);
+	    	return;
+	    }
+	    if (!Announcer.HEARTBEAT.equals(kind)) {
+		    System.out.println("> FROM: " + packet.getAddress().getHostAddress() +
+		    		":" + packet.getPort() + ", DATA: " + data);
+	    }
 	    // ignore self and caches that have been seen already
-	    if (!cacheAddresses.contains(sender)) {
-	    	cacheAddresses.add(sender);
-		    announce(true);
-		    System.out.println("\t> CACHES: " + cacheAddresses);
+	    if (membership.heard(sender)) {
+		    announcer.announceNow();
+		    System.out.println("\t> CACHES: " + membership.caches());
     	}
 	}
 
@@ -93,8 +137,14 @@ public class ServiceDiscovery {
 		}
 	}
 
-	public void announce(boolean once) {
-		new MulticastThread(cachePort, once).start();
+	/* Starts announcing this cache and sending its heartbeats */
+	public void announce() {
+		announcer.start();
+	}
+
+	/* Tells the other caches this one is shutting down */
+	public void leave() {
+		announcer.leave();
 	}
 
 }
@@ -0,0 +1,115 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * A web server for benchmarks, on loopback. /obj/{n}/{size} answers with size
+ * bytes that depend only on n, cacheable for an hour, over keep-alive
+ * connections; anything else is a 404. Counts the requests it answers, so a
+ * load test can tell how many misses reached it.
+ *
+ */
+public class StubOrigin extends Thread {
+
+	private final ServerSocket server;
+	public final LongAdder requests = new LongAdder();
+
+	public StubOrigin() throws IOException {
+		super("StubOrigin");
+		server = new ServerSocket(0, 512, InetAddress.getByName("127.0.0.1"));
+		setDaemon(true);
+	}
+
+	public int port() {
+		return server.getLocalPort();
+	}
+
+	/* The url of object n of the given size, as the proxy is asked for it */
+	public String url(int n, int size) {
+		return "http://127.0.0.1:" + port() + "/obj/" + n + "/" + size;
+	}
+
+	public void run() {
+		while (true) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				return;
+			}
+			Thread connection = new Thread("StubOrigin " + socket.getPort()) {
+				public void run() {
+					serve(socket);
+				}
+			};
+			connection.setDaemon(true);
+			connection.start();
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream(), HttpStreams.BUFFER_SIZE);
+			List<String> request;
+			while ((request = HttpStreams.readHeader(in)) != null) {
+				requests.increment();
+				byte[] body = body(request.get(0).split(" ")[1]);
+				if (body == null) {
+					out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n".getBytes(HttpStreams.ASCII));
+				} else {
+					out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\n" +
+							"Cache-Control: max-age=3600\r\nContent-Length: " + body.length + "\r\n\r\n")
+							.getBytes(HttpStreams.ASCII));
+					out.write(body);
+				}
+				if (in.available() == 0) {
+					out.flush();
+				}
+			}
+		} catch (IOException e) {
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/* The body of /obj/{n}/{size}, or null for any other path */
+	private static byte[] body(String path) {
+		String[] parts = path.split("/");
+		if (parts.length != 4 || !parts[1].equals("obj")) {
+			return null;
+		}
+		try {
+			int n = Integer.parseInt(parts[2]);
+			int size = Integer.parseInt(parts[3]);
+			byte[] body = new byte[size];
+			long seed = n * 0x9E3779B97F4A7C15L;
+			for (int i = 0; i < size; i++) {
+				seed = seed * 6364136223846793005L + 1442695040888963407L;
+				body[i] = (byte) (seed >>> 56);
+			}
+			return body;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public void close() {
+		try {
+			server.close();
+		} catch (IOException e) {}
+	}
+
+}
@@ -1,6 +1,3 @@
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 /**
  * 
  * @author smmorneau
@@ -10,26 +7,21 @@ import java.util.regex.Pattern;
  */
 public class URLParser 
 {
-	/* Example Regular Expressions
+	/* Accepted URLs, as a regular expression
 	 * 
 	 * From http://labs.apache.org/webarch/uri/rfc/rfc3986.html
 	 * ^(([^:/?#]+):)?(//([^/?#]*))?([^?#]*)(\?([^#]*))?(#(.*))?
 	 * 
-	 * protocol:	 ^([a-zA-Z][\\w+-.]*)://		required, starts with letter	
-	 * domain:	 ([^/?#]+)					required, does not contain /?#
-	 * resource:	 (/[^?#]*)?					starts with /, does not contain ?#
-	 * query:	 (?:\\?([^#]*))?				starts with ?, does not contain #
-	 * fragment:	 (?:#(.*))?$					starts with #, everything until end
+	 * protocol:	 (http://)			required
+	 * domain:	 ([^/?#]+)			required, does not contain /?#
+	 * resource:	 (/[^?#]*)?			starts with /, does not contain ?#
+	 *
+	 * Matched by hand in one pass, since a URL is parsed for every fetch.
 	 */
-	private static final String pregex = "(http://)";
-	private static final String dregex = "([^/?#]+)";
-	private static final String rregex = "(/[^?#]*)?(.htm[l]?)?";
-
-	private static final String regex = 
-			pregex + dregex + rregex;
+	private static final String PROTOCOL = "http://";
 
-	public final String url;		// http://docs.python.org/library/string.html?highlight=string#module-string
-	public final String protocol;	// (req) http
+	public final String url;		// http://docs.python.org/library/string.html
+	public final String protocol;	// (req) http://
 	public final String domain;		// (req) docs.python.org
 	public final String resource;	// (opt) /library/string.html
 
@@ -39,13 +31,19 @@ public class URLParser
 	{
 		this.url = url;
 
-		Pattern p = Pattern.compile(regex);
-		Matcher m = null;
-
-		if(url != null)
-			m = p.matcher(url);
+		int slash = -1;
+		boolean matches = url != null && url.startsWith(PROTOCOL);
+		for(int i = PROTOCOL.length(); matches && i < url.length(); i++)
+		{
+			char c = url.charAt(i);
+			if(c == '?' || c == '#')
+				matches = false;
+			else if(c == '/' && slash == -1)
+				slash = i;
+		}
+		int domainEnd = slash == -1 ? (url == null ? 0 : url.length()) : slash;
 
-		if(m == null || !m.matches() || m.groupCount() < 2)
+		if(!matches || domainEnd == PROTOCOL.length())
 		{
 			valid    = false;
 			protocol = null;
@@ -57,14 +55,12 @@ public class URLParser
 
 		// assumptions
 		assert url != null;
-		assert m.groupCount() >= 2 : m.groupCount();
-		assert m.groupCount() <= 5 : m.groupCount();
 
 		valid = true;
 
-		protocol = m.group(1);
-		domain   = m.group(2);
-		resource = m.group(3) == null ? "/" : m.group(3);
+		protocol = PROTOCOL;
+		domain   = url.substring(PROTOCOL.length(), domainEnd);
+		resource = slash == -1 ? "/" : url.substring(slash);
 
 		// postcondition
 		assert resource != null : url;
@@ -0,0 +1,176 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author smmorneau
+ *
+ * Writes cache fills to disk behind the requests that fill them, on
+ * dcache.ioWorkers threads, so a miss never waits on the disk. Each fill
+ * is given to one worker, which writes its bytes in order and then commits
+ * it: the body is moved into place from its temporary file and only then
+ * published in the index. Workers take what has queued up in one batch.
+ * With dcache.fsync, the files committed in a batch are forced to disk
+ * before any is published and the index log is forced once for the batch.
+ *
+ * At most dcache.writeQueueBytes may wait to be written. When the disk
+ * falls that far behind, new bytes are refused and their fill is dropped,
+ * its response still going to the client uncached.
+ *
+ */
+public class WriteBehind {
+
+	private static final int BATCH = 256;
+
+	/* Bytes to write for a fill, or its commit or abort */
+	private static class Task {
+		final CacheFill fill;
+		final byte[] data;
+		final int length;
+		final boolean commit;
+
+		Task(CacheFill fill, byte[] data, int length, boolean commit) {
+			this.fill = fill;
+			this.data = data;
+			this.length = length;
+			this.commit = commit;
+		}
+	}
+
+	public final LongAdder dropped = new LongAdder();
+	public final LongAdder committed = new LongAdder();
+
+	private final ServiceDiscovery sd;
+	private final long maxBytes;
+	private final List<BlockingQueue<Task>> queues = new ArrayList<BlockingQueue<Task>>();
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final AtomicInteger next = new AtomicInteger();
+	private final AtomicInteger busy = new AtomicInteger();
+
+	public WriteBehind(ServiceDiscovery sd, int workers, long maxBytes) {
+		this.sd = sd;
+		this.maxBytes = maxBytes;
+		for (int i = 0; i < Math.max(1, workers); i++) {
+			final BlockingQueue<Task> queue = new LinkedBlockingQueue<Task>();
+			queues.add(queue);
+			Thread worker = new Thread("WriteBehind " + i) {
+				public void run() {
+					drain(queue);
+				}
+			};
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	/* The worker a new fill is written by */
+	public int assign() {
+		return (next.getAndIncrement() & Integer.MAX_VALUE) % queues.size();
+	}
+
+	/*
+	 * Queues length bytes of data, which the caller gives up, for the fill.
+	 * Returns false if the queue is full.
+	 */
+	public boolean write(CacheFill fill, int worker, byte[] data, int length) {
+		long queued;
+		do {
+			queued = queuedBytes.get();
+			if (queued + length > maxBytes && queued > 0) {
+				dropped.increment();
+				return false;
+			}
+		} while (!queuedBytes.compareAndSet(queued, queued + length));
+		queues.get(worker).add(new Task(fill, data, length, false));
+		return true;
+	}
+
+	/* Queues the commit of a fill whose bytes have all been queued */
+	public void commit(CacheFill fill, int worker) {
+		queues.get(worker).add(new Task(fill, null, 0, true));
+	}
+
+	/* Queues the end of a fill that won't be committed */
+	public void abort(CacheFill fill, int worker) {
+		queues.get(worker).add(new Task(fill, null, 0, false));
+	}
+
+	public long queuedBytes() {
+		return queuedBytes.get();
+	}
+
+	/* Waits up to timeout ms for everything queued to be written */
+	public boolean flush(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (System.currentTimeMillis() < deadline) {
+			boolean empty = busy.get() == 0;
+			for (BlockingQueue<Task> queue: queues) {
+				empty &= queue.isEmpty();
+			}
+			if (empty) {
+				return true;
+			}
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private void drain(BlockingQueue<Task> queue) {
+		List<Task> batch = new ArrayList<Task>();
+		List<CacheFill> commits = new ArrayList<CacheFill>();
+		while (true) {
+			try {
+				Task first = queue.poll(1, TimeUnit.SECONDS);
+				if (first == null) {
+					continue;
+				}
+				busy.incrementAndGet();
+				batch.add(first);
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch, BATCH - 1);
+			try {
+				for (Task task: batch) {
+					if (task.data != null) {
+						task.fill.flush(task.data, task.length);
+						queuedBytes.addAndGet(-task.length);
+					} else if (task.commit) {
+						if (task.fill.close(CacheConfig.FSYNC)) {
+							commits.add(task.fill);
+						}
+					} else {
+						task.fill.discard();
+					}
+				}
+				for (CacheFill fill: commits) {
+					if (fill.publish()) {
+						committed.increment();
+					}
+				}
+				if (CacheConfig.FSYNC && !commits.isEmpty()) {
+					sd.disk.syncIndex();
+				}
+			} catch (RuntimeException e) {
+				// a worker that dies leaves its fills unfinished forever
+				e.printStackTrace();
+			} finally {
+				batch.clear();
+				commits.clear();
+				busy.decrementAndGet();
+			}
+		}
+	}
+
+}